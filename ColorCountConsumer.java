@@ -0,0 +1,14 @@
+/**
+ * ColorCountConsumer receives the entries of a ColorTable one at a time, as primitives, so that
+ * walking a table creates no ColorKey objects.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public interface ColorCountConsumer {
+
+	/**
+	 * Handles one entry of a table.
+	 * @param bits The packed bits of the key.
+	 * @param count The value stored with the key.
+	 */
+	void accept(int bits, long count);
+}
@@ -1,19 +1,66 @@
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
 /**
  * ColorHash is a hash table for the ColorKey object.
  * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
  */
-public class ColorHash {
+public class ColorHash implements ColorTable {
 
 	// Constants
 	static final String LINEAR_PROBING = "Linear Probing";
 	static final String QUAD_PROBING   = "Quadratic Probing";
+	static final String ROBIN_HOOD     = "Robin Hood Hashing";
+	static final String DOUBLE_HASHING = "Double Hashing";
+	static final String PRIME_SIZING        = "Prime Sizing";        // Prime table sizes, identity hash by default
+	static final String POWER_OF_TWO_SIZING = "Power of Two Sizing"; // Power-of-two sizes, Murmur3 hash by default
+	static final String EVICT_RAREST    = "Evict Rarest";    // At the entry cap, evict the lowest counts to make room
+	static final String OVERFLOW_BUCKET = "Overflow Bucket"; // At the entry cap, count new keys in the overflow bucket
+	static final int EMPTY_SLOT        = -1; // Marks an unused slot in keyTable; ColorKey bits are never negative
+	static final int TOMBSTONE         = -2; // Marks a removed key under quadratic probing and double hashing
+	static final double MAX_TOMBSTONE_FRACTION = 0.25; // Compact once this fraction of the slots are tombstones
+	static final int MIGRATION_STEP    = 16; // Old slots moved per operation during an incremental resize
+	static final int BATCH_BLOCK       = 8;  // Keys whose home slots incrementAll loads together
+	static final int PROBE_HISTOGRAM_SIZE = 256; // Telemetry counts probe lengths of 255 or more together
+	static final double EVICTION_FRACTION = 0.25; // An eviction sweep frees this fraction of the entry cap
 
 	// Members
-	private HashEntry[] hashTable;  // The hash table itself, made up of dictionaries {key, value}
+	private int[] keyTable;         // The packed ColorKey bits of every slot, or EMPTY_SLOT or TOMBSTONE
+	private long[] valueTable;      // The count/value paired with keyTable at the same index
 	private String collisionMethod; // Chooses which method of probing we use to handle collisions
+	private ProbingStrategy prober; // The probe sequence of collisionMethod
+	private boolean robinHood;      // True if prober stops at richer entries, cached for the probing loop
 	private int currentSize;        // Number of elements currently in hash table
+	private int tombstones;         // Number of TOMBSTONE slots in keyTable
 	private int bpp;                // bitsPerPixel
 	private double rhLoadFactor;    // The rehash load factor
+	private boolean powerOfTwoSizing; // True for POWER_OF_TWO_SIZING
+	private HashStrategy hashStrategy; // Maps key bits to home slots
+	private boolean incrementalResize; // Spread each rehash over the following operations instead of doing it at once
+	private int[] oldKeyTable;      // Table still being migrated by an incremental resize, otherwise null
+	private long[] oldValueTable;   // Values paired with oldKeyTable
+	private int migrateIndex;       // Next slot of oldKeyTable to migrate
+	private int probeCollisions;    // Collisions met by the most recent probing
+	private int lastCollisions;     // Collisions met by the most recent update
+	private boolean lastDidRehash;  // True if the most recent update rehashed
+	private boolean lastDidUpdate;  // True if the most recent update found the key already in the table
+	private int[] blockHomes = new int[BATCH_BLOCK]; // Home slots of the block incrementAll is counting
+	private int[] blockKeys = new int[BATCH_BLOCK];  // Keys found in those home slots
+	private long[] occupied;        // Optional bitmap with one bit per slot of keyTable set while it holds a key
+	private long[] probeHistogram;  // Telemetry: operations by probe length, or null while telemetry is off
+	private int maxProbeLength;     // Telemetry: the longest probe seen
+	private int nResizes;           // Telemetry: resizes and compactions since telemetry was turned on
+	private long resizeNanos;       // Telemetry: time spent allocating and migrating tables
+	private int maxEntries;         // Most keys the table may hold, or 0 for no limit
+	private boolean evictWhenFull;  // True for EVICT_RAREST, false for OVERFLOW_BUCKET
+	private long overflowCount;     // Counts of keys that were evicted or never got an entry
 
 	/**
 	 * Constructs a ColorHash object
@@ -21,143 +68,385 @@ public class ColorHash {
 	 * A ColorHash object contains information relevant to the hash table itself and provides methods to manipulate
 	 * values in the table.
 	 *
-	 * @param tableSize The initial size of the hash table.
+	 * @param tableSize The initial size of the hash table. Double hashing rounds it up to the next prime.
 	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
-	 * @param collisionResolutionMethod The type of probing to use upon collisions (Linear or Quadratic in our case)
+	 * @param collisionResolutionMethod The type of probing to use upon collisions (Linear, Quadratic, Robin Hood or Double)
 	 * @param rehashLoadFactor The threshold that determines when to rehash the table (# elements / table size)
 	 * @throws Exception If the resolution method is invalid
 	 */
 	public ColorHash(int tableSize, int bitsPerPixel, String collisionResolutionMethod, double rehashLoadFactor) throws Exception {
+		this(tableSize, bitsPerPixel, collisionResolutionMethod, rehashLoadFactor, PRIME_SIZING);
+	}
+
+	/**
+	 * Constructs a ColorHash object with a chosen table sizing policy.
+	 *
+	 * PRIME_SIZING is the classic layout: the home slot is bits % size and every resize searches for the next prime.
+	 * POWER_OF_TWO_SIZING keeps the size a power of two so the home slot is a mask instead of a division. Packed
+	 * color bits are far from random, so they are first scrambled with the Murmur3 finalizer. Quadratic probing then
+	 * steps by triangular numbers (1, 3, 6, 10, ...), which visits every slot of a power-of-two table, and double
+	 * hashing uses odd steps.
+	 *
+	 * @param tableSize The initial size of the hash table, rounded up to a prime for double hashing or to a power of
+	 * two for POWER_OF_TWO_SIZING.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param collisionResolutionMethod The type of probing to use upon collisions (Linear, Quadratic, Robin Hood or Double)
+	 * @param rehashLoadFactor The threshold that determines when to rehash the table (# elements / table size)
+	 * @param sizingPolicy PRIME_SIZING or POWER_OF_TWO_SIZING.
+	 * @throws Exception If the resolution method is invalid
+	 */
+	public ColorHash(int tableSize, int bitsPerPixel, String collisionResolutionMethod, double rehashLoadFactor,
+			String sizingPolicy) throws Exception {
+		this(tableSize, bitsPerPixel, collisionResolutionMethod, rehashLoadFactor, sizingPolicy,
+				sizingPolicy.equals(POWER_OF_TWO_SIZING) ? HashStrategy.MURMUR3 : HashStrategy.IDENTITY);
+	}
+
+	/**
+	 * Constructs a ColorHash object with a chosen table sizing policy and hash strategy.
+	 *
+	 * @param tableSize The initial size of the hash table, rounded up to a prime for double hashing or to a power of
+	 * two for POWER_OF_TWO_SIZING.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param collisionResolutionMethod The type of probing to use upon collisions (Linear, Quadratic, Robin Hood or Double)
+	 * @param rehashLoadFactor The threshold that determines when to rehash the table (# elements / table size)
+	 * @param sizingPolicy PRIME_SIZING or POWER_OF_TWO_SIZING.
+	 * @param hashStrategy Maps key bits to home slots, for example HashStrategy.FIBONACCI.
+	 * @throws Exception If the resolution method is invalid
+	 */
+	public ColorHash(int tableSize, int bitsPerPixel, String collisionResolutionMethod, double rehashLoadFactor,
+			String sizingPolicy, HashStrategy hashStrategy) throws Exception {
+
+		// Check for valid sizing policy
+		if (!sizingPolicy.equals(PRIME_SIZING) && !sizingPolicy.equals(POWER_OF_TWO_SIZING)){
+			throw new IllegalArgumentException("Only supports 'Prime Sizing' or 'Power of Two Sizing'.");
+		}
+		powerOfTwoSizing = sizingPolicy.equals(POWER_OF_TWO_SIZING);
+		if (hashStrategy == null){
+			throw new IllegalArgumentException("A hash strategy is required.");
+		}
+		this.hashStrategy = hashStrategy;
+
+		if (powerOfTwoSizing){
+			tableSize = Math.max(2, Integer.highestOneBit(Math.max(tableSize - 1, 1)) << 1);
+		} else if (collisionResolutionMethod.equals(DOUBLE_HASHING)){
+			// Double hashing needs a prime table size so that every probe step visits every slot
+			while (!IsPrime.isPrime(tableSize)){ tableSize++; }
+		}
 
 		// Initialize members
-		hashTable       = new HashEntry[tableSize];
+		keyTable        = newKeyTable(tableSize);
+		valueTable      = new long[tableSize];
 		rhLoadFactor    = rehashLoadFactor;
 		bpp             = bitsPerPixel;
 		currentSize     = 0;
 		collisionMethod = collisionResolutionMethod;
 
-		// Check for valid resolution method
-		if (!collisionResolutionMethod.equals(LINEAR_PROBING) && !collisionResolutionMethod.equals(QUAD_PROBING)){
-			throw new IllegalArgumentException("Only supports 'Linear Probing' or 'Quadratic Probing'.");
-		}
-
-		// Check for valid load factor
-		if (collisionResolutionMethod.equals(LINEAR_PROBING)){
-			if (rhLoadFactor >= 1 || rhLoadFactor <= 0){
-				throw new InvalidLoadFactorException("Invalid Load Factor for Linear Probing");
-			}
-		} else {
-			if (rhLoadFactor >= .5 || rhLoadFactor <= 0){
-				throw new InvalidLoadFactorException("Invalid Load Factor for Quadratic Probing");
-			}
-		}
+		// Check for valid resolution method, then for a valid load factor
+		prober    = ProbingStrategy.forMethod(collisionResolutionMethod, powerOfTwoSizing);
+		robinHood = prober.stopsAtRicherEntry();
+		prober.checkLoadFactor(rhLoadFactor);
 	}
 
 	/**
-	 * Inner class that holds a member of the hash table. It is a pair of a key and corresponding value in one object
+	 * Creates a table for counting colors at a given bits per pixel.
+	 * When a flat count for every possible key fits within the memory budget, the colors are counted in a
+	 * DirectColorTable, which never hashes, collides or resizes. Otherwise a ColorHash is built from the
+	 * remaining arguments.
+	 *
+	 * @param tableSize The initial size of the hash table, if one is needed.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param collisionResolutionMethod The type of probing the hash table uses upon collisions.
+	 * @param rehashLoadFactor The rehash load factor of the hash table.
+	 * @param directMemoryBudget The most bytes a DirectColorTable may take. Use 0 to always hash.
+	 * @return Returns a DirectColorTable or a ColorHash.
+	 * @throws Exception If the resolution method or load factor is invalid
 	 */
-	class HashEntry {
-		private ColorKey myKey;
-		private long myValue;
+	public static ColorTable forKeySpace(int tableSize, int bitsPerPixel, String collisionResolutionMethod,
+			double rehashLoadFactor, long directMemoryBudget) throws Exception {
+		return forKeySpace(tableSize, bitsPerPixel, collisionResolutionMethod, rehashLoadFactor, HashStrategy.IDENTITY,
+				directMemoryBudget);
+	}
 
-		HashEntry(ColorKey key, long value){
-			myKey = key;
-			myValue = value;
+	/**
+	 * Creates a table for counting colors at a given bits per pixel, hashing with a chosen strategy if it hashes.
+	 *
+	 * @param tableSize The initial size of the hash table, if one is needed.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param collisionResolutionMethod The type of probing the hash table uses upon collisions.
+	 * @param rehashLoadFactor The rehash load factor of the hash table.
+	 * @param hashStrategy Maps key bits to home slots of the hash table.
+	 * @param directMemoryBudget The most bytes a DirectColorTable may take. Use 0 to always hash.
+	 * @return Returns a DirectColorTable or a prime-sized ColorHash.
+	 * @throws Exception If the resolution method or load factor is invalid
+	 */
+	public static ColorTable forKeySpace(int tableSize, int bitsPerPixel, String collisionResolutionMethod,
+			double rehashLoadFactor, HashStrategy hashStrategy, long directMemoryBudget) throws Exception {
+		if (DirectColorTable.bytesNeeded(bitsPerPixel) <= directMemoryBudget){
+			return new DirectColorTable(bitsPerPixel);
 		}
+		return new ColorHash(tableSize, bitsPerPixel, collisionResolutionMethod, rehashLoadFactor, PRIME_SIZING,
+				hashStrategy);
+	}
 
-		ColorKey getKey(){
-			return myKey;
-		}
+	/**
+	 * Allocates a key table with every slot marked empty.
+	 * Keys and values live in two parallel primitive arrays rather than one object per entry,
+	 * so a table of millions of colors is just two allocations and probing never chases pointers.
+	 * @param tableSize The number of slots.
+	 * @return Returns a key table filled with EMPTY_SLOT.
+	 */
+	private static int[] newKeyTable(int tableSize){
+		int[] keys = new int[tableSize];
+		java.util.Arrays.fill(keys, EMPTY_SLOT);
+		return keys;
+	}
 
-		long getValue(){
-			return myValue;
-		}
+	/**
+	 * Scrambles packed color bits with the Murmur3 32-bit finalizer so that every output bit depends on every input
+	 * bit. Needed for power-of-two tables, where the home slot is just the low bits of the hash.
+	 * @param bits The packed bits of a key.
+	 * @return Returns the mixed hash.
+	 */
+	static int mix(int bits){
+		int h = bits;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Gets the first slot probed for a key.
+	 * @param bits The packed bits of the key.
+	 * @param tableLength The size of the table being probed.
+	 * @return Returns the home slot chosen by the hash strategy.
+	 */
+	private int homeSlot(int bits, int tableLength){
+		return hashStrategy.homeSlot(bits, tableLength, powerOfTwoSizing);
 	}
 
 	/**
 	 * Gets the bits per pixel value for this hash table
 	 * @return Bits per pixel of the hash table
 	 */
-	int getBPP(){ return bpp; }
+	public int getBPP(){ return bpp; }
+
+	/**
+	 * Gets the hash strategy of this table
+	 * @return The strategy that maps key bits to home slots
+	 */
+	public HashStrategy getHashStrategy(){ return hashStrategy; }
 
 	/**
 	 * Probes the hash table for the insert/update location of the ColorKey, counting collisions along the way.
-	 * It does linear/quadratic probing based on the constructor input.
+	 * It follows the probe sequence of the ProbingStrategy chosen by the constructor.
+	 * Robin Hood hashing probes linearly, but stops early at the first entry that sits closer to its own home
+	 * slot than the key would: the key cannot be stored any further along, so that slot is the insert point.
+	 * Double hashing steps by an amount taken from a second hash of the key, so keys sharing a home slot
+	 * still follow different probe sequences.
+	 * Tombstones left by remove are probed past like any other key, but a missing key is placed in the first one.
+	 *
+	 * The number of collisions is saved into probeCollisions rather than returned, so probing creates no objects.
 	 *
-	 * @param key The key to insert/update in the hash table.
-	 * @return An array of type int[size=2] where array[0] = the index of insert/update point
-	 * and array[1] = the number of collisions during the probing.
+	 * @param bits The packed bits of the key to insert/update in the hash table.
+	 * @return Returns the index of the insert/update point.
+	 */
+	private int probing(int bits){
+		return probing(keyTable, bits);
+	}
+
+	/**
+	 * Probes any key table laid out by this hash table, such as the old table of an incremental resize.
+	 * @param keys The key table to probe.
+	 * @param bits The packed bits of the key to insert/update.
+	 * @return Returns the index of the insert/update point. The number of collisions is saved into probeCollisions.
 	 */
-	private int[] probing(ColorKey key){
+	private int probing(int[] keys, int bits){
 
 		int nCollisions = 0;
 
-		int[] indexAndCollisions = new int[2];
-
-		int hashIndex = key.hashCode() % hashTable.length; // Get the first target index
+		int homeIndex = homeSlot(bits, keys.length);
+		int hashIndex = homeIndex;          // Get the first target index
+		int stepSize = prober.stepSize(bits, keys.length); // Only double hashing steps by more than one
 
+		int firstTombstone = -1;  // A missing key is inserted at the first tombstone passed, if any
 		boolean keyFound = false; // True if we found a place to insert/update
 		while (!keyFound){
 
-			HashEntry currentHash = hashTable[hashIndex];
+			int currentKey = keys[hashIndex];
 
-			if (currentHash == null || currentHash.myKey.equals(key)) { // Empty/duplicate spot found
+			if (currentKey == bits) { // Duplicate spot found
+				keyFound = true;
+			} else if (currentKey == EMPTY_SLOT) { // Empty spot found: the key is missing
 				keyFound = true;
+				if (firstTombstone >= 0){ hashIndex = firstTombstone; }
+			} else if (robinHood && probeDistance(currentKey, hashIndex, keys.length) < nCollisions) {
+				keyFound = true; // A richer entry than us: the key is missing and belongs here
 			} else {  // Otherwise we have a collision, and will probe for a new spot using specified collision method
+				if (currentKey == TOMBSTONE && firstTombstone < 0){ firstTombstone = hashIndex; }
 				nCollisions++;
-				if (collisionMethod.equals(LINEAR_PROBING)){
-					hashIndex++;
-					if (hashIndex == getTableSize()){hashIndex = 0;} // Wrap around array if needed
-				} else if (collisionMethod.equals(QUAD_PROBING)){
-					hashIndex = nCollisions * nCollisions + key.hashCode() % hashTable.length;
-					while(hashIndex >= getTableSize()){
-						hashIndex -= getTableSize();
-					}
-				}
+				hashIndex = prober.nextProbe(hashIndex, homeIndex, stepSize, nCollisions, keys.length);
 			}
 		}
-		indexAndCollisions[0] = hashIndex;
-		indexAndCollisions[1] = nCollisions;
-		return indexAndCollisions;
+		probeCollisions = nCollisions;
+		return hashIndex;
 	}
 
 	/**
-	 * Inserts key into hash table with associated value
-	 * If entry already exists for key, overwrite the value
-	 * @param key The key to insert/update in hash table.
-	 * @param value The value associated with the key
-	 * @return Returns a ResponseItem that contains information about the task.
+	 * Probes a key table kept outside the Java heap, such as the keys of a mapped ColorHash file that was saved
+	 * with the same settings. It follows exactly the probe sequence of probing(int[], int).
+	 * Unlike that method it keeps no state, so a mapped table can be read from several threads, and it gives up
+	 * after one probe per slot. Every probe sequence of a table this class wrote reaches an empty slot sooner, so
+	 * that only ends lookups in a damaged file whose probe sequence never meets one.
+	 * @param keys The key table to probe.
+	 * @param bits The packed bits of the key to find.
+	 * @return An array of type int[size=2] where array[0] = the index of the key or of its insert point
+	 * and array[1] = the number of collisions during the probing. If the probing gave up, the slot at array[0]
+	 * does not hold the key.
 	 */
-	public ResponseItem colorHashPut(ColorKey key, long value){
+	int[] probing(IntBuffer keys, int bits){
+
+		int nCollisions = 0;
+		int tableLength = keys.limit();
+
+		int homeIndex = homeSlot(bits, tableLength);
+		int hashIndex = homeIndex;
+		int stepSize = prober.stepSize(bits, tableLength);
+
+		int currentKey;
+		while ((currentKey = keys.get(hashIndex)) != EMPTY_SLOT && currentKey != bits
+				&& !(robinHood && probeDistance(currentKey, hashIndex, tableLength) < nCollisions)
+				&& nCollisions < tableLength){
+			nCollisions++;
+			hashIndex = prober.nextProbe(hashIndex, homeIndex, stepSize, nCollisions, tableLength);
+		}
+		return new int[] {hashIndex, nCollisions};
+	}
 
+	/**
+	 * Gets how far a stored key sits from its home slot when probing linearly.
+	 * @param bits The packed bits of the stored key.
+	 * @param tableIndex The slot the key is stored in.
+	 * @param tableLength The size of the table the key is stored in.
+	 * @return Returns the number of slots between the home slot and tableIndex, wrapping around the table.
+	 */
+	private int probeDistance(int bits, int tableIndex, int tableLength){
+		int distance = tableIndex - homeSlot(bits, tableLength);
+		if (distance < 0){ distance += tableLength; } // Wrap around array if needed
+		return distance;
+	}
+
+	/**
+	 * Stores a new key at the slot found by probing.
+	 * The slot is normally empty or a tombstone. With Robin Hood hashing it may instead hold an entry that is closer to its home
+	 * than the new key; that entry is displaced one slot on, and so on down the run until an empty slot is reached.
+	 * Poor entries take slots from rich ones, which keeps every probe length close to the average.
+	 *
+	 * @param tableIndex The insert point returned by probing.
+	 * @param bits The packed bits of the key to insert.
+	 * @param value The value associated with the key.
+	 * @return Returns the number of occupied slots stepped over while displacing entries.
+	 */
+	private int insertAt(int tableIndex, int bits, long value){
+		int nCollisions = 0;
+		if (keyTable[tableIndex] == TOMBSTONE){ // Reuse the slot of a removed key
+			keyTable[tableIndex] = EMPTY_SLOT;
+			tombstones--;
+		}
+		while (keyTable[tableIndex] != EMPTY_SLOT){
+			int displacedKey = keyTable[tableIndex];
+			long displacedValue = valueTable[tableIndex];
+			int distance = probeDistance(displacedKey, tableIndex, keyTable.length);
+			keyTable[tableIndex] = bits;
+			valueTable[tableIndex] = value;
+			bits = displacedKey;
+			value = displacedValue;
+
+			// Carry the displaced entry forward until it finds an empty slot or a richer entry to swap with
+			do {
+				nCollisions++;
+				distance++;
+				tableIndex++;
+				if (tableIndex == keyTable.length){tableIndex = 0;} // Wrap around array if needed
+			} while (keyTable[tableIndex] != EMPTY_SLOT
+					&& probeDistance(keyTable[tableIndex], tableIndex, keyTable.length) >= distance);
+		}
+		keyTable[tableIndex] = bits;
+		valueTable[tableIndex] = value;
+		setOccupied(tableIndex, true);
+		return nCollisions;
+	}
+
+	/**
+	 * Adds to, or overwrites, the value of a key, inserting the key if needed. This is the shared body of
+	 * colorHashPut, increment and incrementBits, and it creates no objects: the number of collisions and whether
+	 * the table rehashed or the key already existed are saved into lastCollisions, lastDidRehash and lastDidUpdate.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add, or the value to store.
+	 * @param overwrite True to store amount, false to add it.
+	 * @return Returns the new value of the key.
+	 */
+	private long update(int bits, long amount, boolean overwrite){
+
+		long value        = amount;
 		int nCollisions   = 0;
 		boolean didRehash = false;
 		boolean didUpdate = false;
 
+		int migrationCollisions = migrateSome(); // Only does work while an incremental resize is in progress
 
-		int[] ixAndCols = probing(key); // Get insert/update position and numCollisions
-		int hashIndex = ixAndCols[0];
-		nCollisions = ixAndCols[1];
+		int hashIndex = probing(bits); // Get insert/update position and numCollisions
+		int probeLength = probeCollisions;
+		nCollisions = probeCollisions + migrationCollisions;
+		int oldIndex = findInOldTable(bits);
 
-		HashEntry currentHash = hashTable[hashIndex];
+		if (oldIndex >= 0) { // Key has not been migrated yet, update it in the old table
+			value = oldValueTable[oldIndex] = overwrite ? amount : oldValueTable[oldIndex] + amount;
+			didUpdate = true;
 
-		if (currentHash == null) {  // Empty spot found
-			didRehash = checkRehashing();
+		} else if (keyTable[hashIndex] != bits && isFull() && !evictWhenFull) { // No room: fold it into the overflow
+			overflowCount += amount;
+			value = 0L;
+
+		} else if (keyTable[hashIndex] != bits) {  // Key not in the table, insert it
+			if (isFull()){
+				evictRarest(); // Rebuilds the table
+				didRehash = true;
+			}
+			didRehash |= checkRehashing();
 			if (didRehash){
-				ixAndCols = probing(key);  // Probe in newly created hash table for a spot
-				nCollisions += ixAndCols[1];  // Add collisions from probing new table
+				hashIndex = probing(bits);  // Probe in newly created hash table for a spot
+				probeLength = probeCollisions;
+				nCollisions += probeCollisions;  // Add collisions from probing new table
 				nCollisions += rehashCollisions;
-				hashIndex = ixAndCols[0];  // Save the newly found spot in the rehashed table
 			}
-			hashTable[hashIndex] = new HashEntry(key, value); // Insert the key
+			nCollisions += insertAt(hashIndex, bits, value); // Insert the key
 			currentSize++;
 
-		} else if (currentHash.myKey.equals(key)) { // Duplicate key found, update value
-			hashTable[hashIndex].myValue = value;
+		} else { // Duplicate key found, update value
+			value = valueTable[hashIndex] = overwrite ? amount : valueTable[hashIndex] + amount;
 			didUpdate = true;
 		}
 
-		return new ResponseItem(value, nCollisions, didRehash, didUpdate);
+		if (probeHistogram != null){ recordProbe(probeLength); }
+		lastCollisions = nCollisions;
+		lastDidRehash  = didRehash;
+		lastDidUpdate  = didUpdate;
+		return value;
+	}
+
+	/**
+	 * Inserts key into hash table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update in hash table.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		update(key.getBits(), value, true);
+		return new ResponseItem(value, lastCollisions, lastDidRehash, lastDidUpdate);
 	}
 
 	/**
@@ -166,34 +455,34 @@ public class ColorHash {
 	 * @return Return a ResponseItem with the relevant procedural info.
 	 */
 	public ResponseItem increment(ColorKey key){
+		long value = update(key.getBits(), 1L, false);
+		return new ResponseItem(value, lastCollisions, lastDidRehash, lastDidUpdate);
+	}
 
-		long value        = 1;
-		int nCollisions   = 0;
-		boolean didRehash = false;
-		boolean didUpdate = false;
-
-		int[] ixAndCols = probing(key); // Get insert/update position and numCollisions
-		int hashIndex = ixAndCols[0];
-		nCollisions = ixAndCols[1];
-
-		HashEntry currentHash = hashTable[hashIndex];
-
-		if (currentHash == null) { // Empty spot found
-			didRehash = checkRehashing();
-			if (didRehash){
-				ixAndCols = probing(key);
-				nCollisions += rehashCollisions;
-				nCollisions += ixAndCols[1];
-				hashIndex = ixAndCols[0];
-			}
-			hashTable[hashIndex] = new HashEntry(key, value);
-			currentSize++;
+	/**
+	 * Increments a key like increment(ColorKey), but adds what happened to a reusable accumulator instead of
+	 * returning a new ResponseItem.
+	 * @param key The key to increment or insert.
+	 * @param stats The accumulator to add to, or null to keep no statistics.
+	 * @return Returns the new count of the key.
+	 */
+	public long increment(ColorKey key, ProbeStats stats){
+		return incrementBits(key.getBits(), stats);
+	}
 
-		} else if (currentHash.myKey.equals(key)) { // Duplicate key found, increment value
-			value = hashTable[hashIndex].myValue += 1;
-			didUpdate = true;
+	/**
+	 * Increments a key given by its packed bits (see ColorKey.pack). Together with a reused ProbeStats, or none,
+	 * a counting loop built on this method allocates nothing once the table has grown to size.
+	 * @param bits The packed bits of the key to increment or insert.
+	 * @param stats The accumulator to add to, or null to keep no statistics.
+	 * @return Returns the new count of the key.
+	 */
+	public long incrementBits(int bits, ProbeStats stats){
+		long value = update(bits, 1L, false);
+		if (stats != null){
+			stats.record(lastCollisions, lastDidRehash, lastDidUpdate);
 		}
-		return new ResponseItem(value, nCollisions, didRehash, didUpdate);
+		return value;
 	}
 
 	/**
@@ -210,16 +499,20 @@ public class ColorHash {
 		boolean didUpdate = false;
 
 
-		int[] ixAndCols = probing(key); // Get insert/update position and numCollisions
-		int hashIndex = ixAndCols[0];
-		nCollisions = ixAndCols[1];
+		int bits = key.getBits();
+		int migrationCollisions = migrateSome(); // Only does work while an incremental resize is in progress
 
-		HashEntry currentHash = hashTable[hashIndex];
+		int hashIndex = probing(bits); // Get insert/update position and numCollisions
+		nCollisions = probeCollisions + migrationCollisions;
+		if (probeHistogram != null){ recordProbe(probeCollisions); }
+		int oldIndex = findInOldTable(bits);
 
-		if (currentHash == null) { // Empty spot
+		if (oldIndex >= 0) { // Key has not been migrated yet
+			value = oldValueTable[oldIndex];
+		} else if (keyTable[hashIndex] != bits) { // Empty spot, or an entry that ends the search
 			throw new MissingColorKeyException("Key not found");
-		} else if (currentHash.myKey.equals(key)) { // Key found, return the value
-			value = hashTable[hashIndex].myValue;
+		} else { // Key found, return the value
+			value = valueTable[hashIndex];
 		}
 
 		return new ResponseItem(value, nCollisions, didRehash, didUpdate);
@@ -234,18 +527,20 @@ public class ColorHash {
 	public long getCount(ColorKey key){
 
 		long value      = -1L;
-		int nCollisions = 0;
 
-		int[] ixAndCols = probing(key); // Get insert/update position and numCollisions
-		int hashIndex = ixAndCols[0];
-		nCollisions = ixAndCols[1];
+		int bits = key.getBits();
+		migrateSome(); // Only does work while an incremental resize is in progress
 
-		HashEntry currentHash = hashTable[hashIndex];
+		int hashIndex = probing(bits); // Get insert/update position
+		if (probeHistogram != null){ recordProbe(probeCollisions); }
+		int oldIndex = findInOldTable(bits);
 
-		if (currentHash == null) { // Key not found, so we return 0
+		if (oldIndex >= 0) { // Key has not been migrated yet
+			value = oldValueTable[oldIndex];
+		} else if (keyTable[hashIndex] != bits) { // Key not found, so we return 0
 			value = 0L;
-		} else if (currentHash.myKey.equals(key)) { // Key found, return associated value
-			value = hashTable[hashIndex].myValue;
+		} else { // Key found, return associated value
+			value = valueTable[hashIndex];
 		}
 
 		return value;
@@ -253,23 +548,29 @@ public class ColorHash {
 
 	/**
 	 * Gets the Key at the specified index.
+	 * During an incremental resize only the new table is indexed, so keys that have not been migrated yet are
+	 * not seen; call finishResize() first to walk every key by index.
 	 * @param tableIndex The index of the hash table.
-	 * @return Returns a key in the hash table.
+	 * @return Returns a key in the hash table, or null if the slot is empty.
 	 * @throws IndexOutOfBoundsException If index is not in the table.
 	 */
 	public ColorKey getKeyAt(int tableIndex){
 		if (tableIndex >= getTableSize() || tableIndex < 0){
 			throw new IndexOutOfBoundsException();
 		}
+		if (keyTable[tableIndex] < 0){ // EMPTY_SLOT or TOMBSTONE
+			return null;
+		}
 		try {
-			return hashTable[tableIndex].myKey;
-		} catch (NullPointerException e){
+			return new ColorKey(keyTable[tableIndex], bpp);
+		} catch (Exception e){
 			return null;
 		}
 	}
 
 	/**
-	 * Gets the value stored at the index location.
+	 * Gets the value stored at the index location. Like getKeyAt, it only reads the new table during an
+	 * incremental resize.
 	 * @param tableIndex The index of the hash table value to return.
 	 * @return Returns the value specified by the index.
 	 */
@@ -278,10 +579,10 @@ public class ColorHash {
 			throw new IndexOutOfBoundsException();
 		}
 
-		if (hashTable[tableIndex] == null){
+		if (keyTable[tableIndex] < 0){ // EMPTY_SLOT or TOMBSTONE
 			return -1L;
 		} else {
-			return hashTable[tableIndex].myValue;
+			return valueTable[tableIndex];
 		}
 	}
 
@@ -290,72 +591,847 @@ public class ColorHash {
 	 * Gets the current value of the hash table load factor.
 	 * @return Returns the current load factor.
 	 */
-	public double getLoadFactor(){ return (currentSize + 1.0) /hashTable.length; }
+	public double getLoadFactor(){ return (currentSize + 1.0) /keyTable.length; }
 
 	/**
 	 * Gets the current size of the hash table. Since resizing can happen this is not a constant.
+	 * During an incremental resize it is the size of the new table.
 	 * @return Returns the current size of the hash table, including empty spots.
 	 */
-	public int getTableSize(){ return hashTable.length; }
+	public int getTableSize(){ return keyTable.length; }
+
+	/**
+	 * Gets the number of keys in the hash table.
+	 * @return Returns the number of keys, not counting empty spots or removed keys.
+	 */
+	public int getSize(){ return currentSize; }
 
 	/**
-	 * Resizes the hash table to the next prime number that is at least double the old size.
+	 * Turns incremental resizing on or off.
+	 * When on, a resize only allocates the bigger table. The entries of the old table are then moved across
+	 * MIGRATION_STEP slots at a time by each following operation, and lookups check both tables until the
+	 * old one is empty. No single operation pays for the whole rehash.
+	 * Turning it off finishes any resize in progress.
+	 * @param incremental True to spread rehashing over later operations.
+	 */
+	public void setIncrementalResize(boolean incremental){
+		incrementalResize = incremental;
+		if (!incremental){
+			finishResize();
+		}
+	}
+
+	/**
+	 * Resizes the hash table to the next prime number that is at least double the old size,
+	 * or to exactly double the old size for power-of-two sizing.
 	 * It also counts the collisions during rehashing and saves it into a private variable.
+	 * With incremental resizing on, the entries are left in the old table to be migrated later.
 	 */
 	private int rehashCollisions = 0;
 	public void resize(){
+		// new table size must be at least double the old size
+		resizeTo(keyTable.length * 2);
+	}
 
-		rehashCollisions = 0;
+	/**
+	 * Resizes the hash table to the next prime number, or power of two for power-of-two sizing, that is at least
+	 * minTableSize. Collisions are saved into rehashCollisions, as for resize().
+	 * @param minTableSize The smallest acceptable new size.
+	 */
+	private void resizeTo(int minTableSize){
 
-		// new table size must be at least double the old size
-		int newTableSize = getTableSize() * 2;
-		// new table size must be a prime number
-		while (!IsPrime.isPrime(newTableSize)){ newTableSize++; }
-
-		try{
-			// Create temps
-			ColorHash tempCH = new ColorHash(newTableSize, bpp, collisionMethod, rhLoadFactor);
-			HashEntry[] tempHT = tempCH.getHashTable();
-
-			HashEntry currentHash;
-			for (int i = 0; i < getTableSize(); i++) {
-				currentHash = hashTable[i];
-				if (currentHash != null){
-					ResponseItem ri = tempCH.colorHashPut(currentHash.getKey(), currentHash.getValue());
-					rehashCollisions += ri.nCollisions;
-				}
+		rehashCollisions = finishResize(); // Only one resize can be in progress at a time
+		long startTime = probeHistogram != null ? System.nanoTime() : 0L;
+
+		int newTableSize = minTableSize;
+		if (powerOfTwoSizing){
+			newTableSize = Integer.highestOneBit(Math.max(newTableSize - 1, 1)) << 1;
+		}
+		// new table size must be a prime number, unless we are keeping powers of two
+		while (!powerOfTwoSizing && !IsPrime.isPrime(newTableSize)){ newTableSize++; }
+
+		oldKeyTable = keyTable;
+		oldValueTable = valueTable;
+		migrateIndex = 0;
+		tombstones = 0; // Tombstones are not migrated
+		keyTable = newKeyTable(newTableSize);
+		if (occupied != null){
+			occupied = new long[(newTableSize + 63) >>> 6];
+		}
+		valueTable = new long[newTableSize];
+		if (probeHistogram != null){
+			nResizes++;
+			resizeNanos += System.nanoTime() - startTime; // Migration times itself
+		}
+
+		if (!incrementalResize){
+			rehashCollisions += finishResize();
+		}
+	}
+
+	/**
+	 * Moves the next MIGRATION_STEP slots of the old table into the current one, if a resize is in progress.
+	 * @return Returns the number of collisions met while reinserting.
+	 */
+	private int migrateSome(){
+		if (oldKeyTable == null){
+			return 0;
+		}
+		return migrate(Math.min(oldKeyTable.length, migrateIndex + MIGRATION_STEP));
+	}
+
+	/**
+	 * Moves every remaining entry of the old table into the current one, if an incremental resize is in
+	 * progress, so that every key can be reached by index. This is the whole rehash pause that incremental
+	 * resizing spreads out, so call it only when a walk by index is needed.
+	 * @return Returns the number of collisions met while reinserting.
+	 */
+	public int finishResize(){
+		if (oldKeyTable == null){
+			return 0;
+		}
+		return migrate(oldKeyTable.length);
+	}
+
+	/**
+	 * Reinserts the old table entries from migrateIndex up to (not including) endIndex straight into the current
+	 * arrays; no entry objects are created along the way. The old table is dropped once it has been fully migrated.
+	 * An entry is never in both tables: lookups check the current table first and only insert keys they
+	 * did not find in the old table.
+	 * @param endIndex The old table slot to stop at.
+	 * @return Returns the number of collisions met while reinserting.
+	 */
+	private int migrate(int endIndex){
+		long startTime = probeHistogram != null ? System.nanoTime() : 0L;
+		int nCollisions = 0;
+		for (; migrateIndex < endIndex; migrateIndex++) {
+			int bits = oldKeyTable[migrateIndex];
+			if (bits >= 0){ // Not EMPTY_SLOT or TOMBSTONE
+				int hashIndex = probing(bits);
+				nCollisions += probeCollisions;
+				nCollisions += insertAt(hashIndex, bits, oldValueTable[migrateIndex]);
 			}
-			hashTable = tempHT;
-		} catch (Exception InvalidLoadFactor) {
-			System.out.println(InvalidLoadFactor);
 		}
+		if (migrateIndex == oldKeyTable.length){
+			oldKeyTable = null;
+			oldValueTable = null;
+		}
+		if (probeHistogram != null){ resizeNanos += System.nanoTime() - startTime; }
+		return nCollisions;
+	}
 
+	/**
+	 * Looks for a key that has not been migrated yet.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the index of the key in the old table, or -1 if no resize is in progress or the key is not there.
+	 */
+	private int findInOldTable(int bits){
+		if (oldKeyTable == null){
+			return -1;
+		}
+		int hashIndex = probing(oldKeyTable, bits);
+		if (hashIndex < migrateIndex || oldKeyTable[hashIndex] != bits){ // Migrated slots are stale
+			return -1;
+		}
+		return hashIndex;
 	}
 
 	/**
 	 * Check if we are over the load factor and must rehash. If we are, then go ahead and rehash and set flag.
+	 * If only the keys and tombstones together are over it, the table is compacted instead: rehashed at the same
+	 * size, which clears the tombstones and keeps an empty slot at the end of every probe sequence.
 	 */
 	private boolean checkRehashing(){
 		if (getLoadFactor() >= rhLoadFactor) {
 			resize();
 			return true;
+		} else if (tombstones > 0 && (currentSize + tombstones + 1.0) / keyTable.length >= rhLoadFactor) {
+			compact();
+			return true;
 		} else {
 			return false;
 		}
 	}
 
 	/**
-	 * Gets the current hash table.
-	 * @return Returns the hash table
+	 * Rehashes the table at its current size to clear the tombstones.
+	 * Collisions met along the way are saved into rehashCollisions.
 	 */
-	HashEntry[] getHashTable(){
-		return hashTable;
+	private void compact(){
+		resizeTo(keyTable.length);
+	}
+
+	/**
+	 * Removes a key from the table.
+	 * Linear probing and Robin Hood hashing use backward-shift deletion: the entries after the removed one are
+	 * moved back to fill the gap, so no probe sequence is broken and nothing is left behind. Quadratic probing and
+	 * double hashing sequences cannot be shifted, so the slot becomes a TOMBSTONE that lookups probe past and
+	 * inserts reuse. Once more than MAX_TOMBSTONE_FRACTION of the slots are tombstones the table is compacted.
+	 * @param key The key to remove.
+	 * @return Returns the value the key had, or 0 if it was not in the table.
+	 */
+	public long remove(ColorKey key){
+		finishResize(); // Only delete from a single table
+		int bits = key.getBits();
+		int hashIndex = probing(bits);
+		if (keyTable[hashIndex] != bits){
+			return 0L;
+		}
+		long value = valueTable[hashIndex];
+		removeAt(hashIndex);
+		return value;
+	}
+
+	/**
+	 * Decrements the value of a key, removing the key when its value reaches zero.
+	 * @param key The key to decrement.
+	 * @return Returns a ResponseItem with the new value (0 if the key was removed or was not in the table).
+	 * didUpdate is true if the key was in the table.
+	 */
+	public ResponseItem decrement(ColorKey key){
+		finishResize(); // Only delete from a single table
+		int bits = key.getBits();
+		int hashIndex = probing(bits);
+		int nCollisions = probeCollisions;
+		if (keyTable[hashIndex] != bits){
+			return new ResponseItem(0L, nCollisions, false, false);
+		}
+		long value = valueTable[hashIndex] -= 1;
+		if (value <= 0){
+			removeAt(hashIndex);
+			value = 0L;
+		}
+		return new ResponseItem(value, nCollisions, false, true);
+	}
+
+	/**
+	 * Adds an amount, which may be negative, to the count of a key. A positive amount inserts a missing key like
+	 * increment does. A key whose count drops to 0 or below is removed, as by decrement; subtracting from a
+	 * missing key does nothing. Used to apply and retract whole histograms, such as the frames of a window.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add.
+	 * @return Returns the count of the key afterwards, 0 if it is not in the table.
+	 */
+	public long addBits(int bits, long amount){
+		if (amount > 0){
+			return update(bits, amount, false);
+		}
+		finishResize(); // Only delete from a single table
+		int hashIndex = probing(bits);
+		if (keyTable[hashIndex] != bits){
+			return 0L;
+		}
+		long value = valueTable[hashIndex] += amount;
+		if (value <= 0){
+			removeAt(hashIndex);
+			value = 0L;
+		}
+		return value;
+	}
+
+	/**
+	 * Empties the slot of a stored key, by backward shifting or by leaving a tombstone.
+	 * @param tableIndex The slot holding the key.
+	 */
+	private void removeAt(int tableIndex){
+		currentSize--;
+		if (prober.leavesTombstones()){
+			keyTable[tableIndex] = TOMBSTONE;
+			setOccupied(tableIndex, false);
+			valueTable[tableIndex] = 0L;
+			tombstones++;
+			if (tombstones > keyTable.length * MAX_TOMBSTONE_FRACTION){
+				compact();
+			}
+			return;
+		}
+
+		// Backward shift: move later entries of the run into the hole while that keeps them reachable
+		int hole = tableIndex;
+		int next = tableIndex;
+		while (true){
+			next++;
+			if (next == keyTable.length){next = 0;} // Wrap around array if needed
+			int nextKey = keyTable[next];
+			if (nextKey == EMPTY_SLOT){
+				break;
+			}
+			int nextDistance = probeDistance(nextKey, next, keyTable.length);
+			if (robinHood && nextDistance == 0){
+				break; // Robin Hood runs end at an entry in its home slot
+			}
+			int holeDistance = next - hole;
+			if (holeDistance < 0){ holeDistance += keyTable.length; }
+			if (nextDistance >= holeDistance){ // The hole lies between the entry's home slot and the entry
+				keyTable[hole] = nextKey;
+				valueTable[hole] = valueTable[next];
+				hole = next;
+			}
+		}
+		keyTable[hole] = EMPTY_SLOT;
+		valueTable[hole] = 0L;
+		setOccupied(hole, false);
+	}
+
+	/**
+	 * Grows the table, in a single resize of at least double, so that it can hold nKeys keys without passing the
+	 * load factor.
+	 * Does nothing if it already can. Collisions met while rehashing are saved into rehashCollisions.
+	 * @param nKeys The number of keys the table should be able to hold. More than the 2^bpp keys of the key
+	 * space, or the entry cap, is treated as that many.
+	 * @return Returns true if the table was resized.
+	 */
+	public boolean ensureCapacity(int nKeys){
+		nKeys = (int) Math.min(nKeys, 1L << bpp);                    // There are no more distinct keys than that
+		if (maxEntries > 0){ nKeys = Math.min(nKeys, maxEntries); } // Never grow past the entry cap
+		if ((nKeys + 1.0) / keyTable.length < rhLoadFactor){
+			return false;
+		}
+		// At least double, like resize(), so that a run of small batches does not resize every time
+		long neededSize = (long) ((nKeys + 1) / rhLoadFactor) + 1;
+		resizeTo((int) Math.min(Integer.MAX_VALUE / 2, Math.max(neededSize, 2L * keyTable.length)));
+		return true;
+	}
+
+	/**
+	 * Increments a run of keys given by their packed bits, for example one column of an image.
+	 * Same as calling incrementBits(keys[i], null) for each key in order.
+	 * @param keys The packed key bits.
+	 * @param offset The index of the first key to count.
+	 * @param length The number of keys to count.
+	 */
+	public void incrementAll(int[] keys, int offset, int length){
+		incrementAll(keys, offset, length, null);
+	}
+
+	/**
+	 * Increments a run of keys given by their packed bits, adding what happened to an accumulator.
+	 * <p>
+	 * The table first grows once for the worst case of every key being new, so no resize happens part way.
+	 * Keys are then handled BATCH_BLOCK at a time: the home slots of the whole block are read before any key is
+	 * counted, so their cache misses overlap instead of being paid one after the other, and a key found in its
+	 * home slot is counted right there without running the full probe.
+	 * @param keys The packed key bits.
+	 * @param offset The index of the first key to count.
+	 * @param length The number of keys to count.
+	 * @param stats The accumulator to add to, or null to keep no statistics.
+	 */
+	public void incrementAll(int[] keys, int offset, int length, ProbeStats stats){
+		if (ensureCapacity(currentSize + length) && stats != null){
+			stats.nRehashes++;
+			stats.nCollisions += rehashCollisions;
+		}
+		int end = offset + length;
+		int i = offset;
+		for (; i + BATCH_BLOCK <= end && oldKeyTable == null; i += BATCH_BLOCK){
+			int tableLength = keyTable.length;
+			for (int j = 0; j < BATCH_BLOCK; j++){ // Issue every load of the block before using any
+				int home = homeSlot(keys[i + j], tableLength);
+				blockHomes[j] = home;
+				blockKeys[j] = keyTable[home];
+			}
+			for (int j = 0; j < BATCH_BLOCK; j++){
+				int bits = keys[i + j];
+				int home = blockHomes[j];
+				if (blockKeys[j] == bits && keyTable[home] == bits){ // Still at home; Robin Hood inserts can move it
+					valueTable[home]++;
+					if (stats != null){ stats.record(0, false, true); }
+					if (probeHistogram != null){ recordProbe(0); }
+				} else {
+					incrementBits(bits, stats);
+					if (keyTable.length != tableLength){ break; } // Rehashed: the remaining homes are stale
+				}
+			}
+		}
+		for (; i < end; i++){
+			incrementBits(keys[i], stats);
+		}
+	}
+
+	/**
+	 * Stores a value for every key of a batch, overwriting existing values. The table grows once up front.
+	 * @param keys The packed key bits.
+	 * @param values The value of each key, parallel to keys.
+	 * @throws IllegalArgumentException If the arrays have different lengths
+	 */
+	public void putAll(int[] keys, long[] values){
+		if (keys.length != values.length){
+			throw new IllegalArgumentException("keys and values must have the same length");
+		}
+		ensureCapacity(currentSize + keys.length);
+		for (int i = 0; i < keys.length; i++){
+			update(keys[i], values[i], true);
+		}
+	}
+
+	/**
+	 * Adds the counts of another table into this one, key by key.
+	 * The other table's arrays are walked directly and this table is grown once up front, so no ColorKey or
+	 * ResponseItem is created and no rehash happens part way through.
+	 * @param other The table to add in. It is not changed.
+	 * @throws IllegalArgumentException If the tables have different bits per pixel
+	 */
+	public void mergeFrom(ColorHash other){
+		if (other.bpp != bpp){
+			throw new IllegalArgumentException("Cannot merge tables with different bits per pixel");
+		}
+		int[] otherKeys = other.getKeyTable();
+		long[] otherValues = other.getValueTable();
+
+		ensureCapacity(currentSize + other.currentSize); // The worst case, where no key is shared
+		finishResize();
+		overflowCount += other.overflowCount;
+
+		for (int i = 0; i < otherKeys.length; i++){
+			if (otherKeys[i] >= 0){ // Not EMPTY_SLOT or TOMBSTONE
+				addCount(otherKeys[i], otherValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Adds an amount to the value of a key, inserting the key if needed. Only used when no resize is in progress.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add.
+	 */
+	private void addCount(int bits, long amount){
+		int hashIndex = probing(bits);
+		if (keyTable[hashIndex] == bits){
+			valueTable[hashIndex] += amount;
+			return;
+		}
+		if (isFull()){
+			if (!evictWhenFull){
+				overflowCount += amount;
+				return;
+			}
+			evictRarest();
+			hashIndex = probing(bits);
+		}
+		if (getLoadFactor() >= rhLoadFactor){
+			resize();
+			finishResize();
+			hashIndex = probing(bits);
+		}
+		insertAt(hashIndex, bits, amount);
+		currentSize++;
+	}
+
+	/**
+	 * Sums any number of tables into a new one, which uses the collision method, load factor, sizing, hash
+	 * strategy and entry cap of the first table. It starts out big enough for the largest table, since shards of one image mostly share colors,
+	 * and each mergeFrom grows it at most once. Keys that do not fit under the cap are evicted or go to the
+	 * overflow count, as the cap's policy says, so merging capped shards gives a capped table.
+	 * @param tables The tables to merge, all with the same bits per pixel. They are not changed.
+	 * @return Returns a new table holding the summed counts.
+	 * @throws Exception If no tables are given
+	 */
+	public static ColorHash merge(ColorHash... tables) throws Exception {
+		if (tables.length == 0){
+			throw new IllegalArgumentException("Nothing to merge");
+		}
+		ColorHash first = tables[0];
+		int largestSize = 0;
+		for (ColorHash table : tables){
+			largestSize = Math.max(largestSize, table.currentSize);
+		}
+		int tableSize = (int) ((largestSize + 1) / first.rhLoadFactor) + 1;
+		ColorHash merged = new ColorHash(tableSize, first.bpp, first.collisionMethod, first.rhLoadFactor,
+				first.powerOfTwoSizing ? POWER_OF_TWO_SIZING : PRIME_SIZING, first.hashStrategy);
+		merged.maxEntries    = first.maxEntries;
+		merged.evictWhenFull = first.evictWhenFull;
+		for (ColorHash table : tables){
+			merged.mergeFrom(table);
+		}
+		return merged;
+	}
+
+	/**
+	 * Turns the occupancy bitmap on or off. With it on, the table keeps one bit per slot saying whether the slot
+	 * holds a key, and forEach and Cursor skip 64 empty slots at a time by reading one long of the bitmap instead
+	 * of 64 keys. It costs an eighth of a byte per slot and a little work on every insert and remove, so it pays
+	 * off for sparse tables that are walked often.
+	 * @param tracking True to keep the bitmap.
+	 */
+	public void setOccupancyTracking(boolean tracking){
+		if (!tracking){
+			occupied = null;
+			return;
+		}
+		finishResize();
+		occupied = new long[(keyTable.length + 63) >>> 6];
+		for (int i = 0; i < keyTable.length; i++){
+			if (keyTable[i] >= 0){ // Not EMPTY_SLOT or TOMBSTONE
+				setOccupied(i, true);
+			}
+		}
+	}
+
+	/**
+	 * Updates the occupancy bitmap for one slot, if the bitmap is on.
+	 * @param tableIndex The slot.
+	 * @param holdsKey True if the slot now holds a key.
+	 */
+	private void setOccupied(int tableIndex, boolean holdsKey){
+		if (occupied == null){
+			return;
+		}
+		if (holdsKey){
+			occupied[tableIndex >>> 6] |= 1L << tableIndex;
+		} else {
+			occupied[tableIndex >>> 6] &= ~(1L << tableIndex);
+		}
+	}
+
+	/**
+	 * Finds the next slot that holds a key, using the occupancy bitmap when it is on.
+	 * @param fromIndex The first slot to look at.
+	 * @return Returns the index of the slot, or -1 if there are no more keys.
+	 */
+	private int nextOccupied(int fromIndex){
+		if (fromIndex >= keyTable.length){
+			return -1;
+		}
+		if (occupied != null){
+			int word = fromIndex >>> 6;
+			long bitsLeft = occupied[word] & (-1L << fromIndex); // Drop the slots before fromIndex
+			while (bitsLeft == 0){
+				if (++word == occupied.length){
+					return -1;
+				}
+				bitsLeft = occupied[word];
+			}
+			return (word << 6) + Long.numberOfTrailingZeros(bitsLeft);
+		}
+		for (int i = fromIndex; i < keyTable.length; i++){
+			if (keyTable[i] >= 0){ // Not EMPTY_SLOT or TOMBSTONE
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Passes every key and its value to an action, visiting occupied slots only.
+	 * Finishes any incremental resize first. The table must not be changed until forEach returns.
+	 * @param action The action to run for each entry.
+	 */
+	public void forEach(ColorCountConsumer action){
+		finishResize();
+		for (int i = nextOccupied(0); i >= 0; i = nextOccupied(i + 1)){
+			action.accept(keyTable[i], valueTable[i]);
+		}
+	}
+
+	/**
+	 * Creates a cursor positioned before the first entry. Finishes any incremental resize first.
+	 * @return Returns a new Cursor over this table.
+	 */
+	public Cursor cursor(){
+		finishResize();
+		return new Cursor();
+	}
+
+	/**
+	 * A Cursor walks the occupied slots of a ColorHash. One cursor can be reset and reused for any number of
+	 * walks, so walking a table repeatedly creates no objects. The table must not be changed during a walk.
+	 */
+	public class Cursor {
+		private int index = -1; // The current slot, or -1 before the first entry
+
+		/**
+		 * Moves the cursor back to before the first entry.
+		 */
+		public void reset(){
+			finishResize();
+			index = -1;
+		}
+
+		/**
+		 * Moves to the next entry.
+		 * @return Returns false if there are no more entries.
+		 */
+		public boolean next(){
+			if (index == -2){
+				return false;
+			}
+			index = nextOccupied(index + 1);
+			if (index < 0){
+				index = -2; // Stay at the end
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Gets the packed key bits of the current entry.
+		 * @return Returns the key bits.
+		 */
+		public int getBits(){ return keyTable[index]; }
+
+		/**
+		 * Gets the value of the current entry.
+		 * @return Returns the value.
+		 */
+		public long getCount(){ return valueTable[index]; }
+
+		/**
+		 * Gets the slot of the current entry, as used by getKeyAt and getValueAt.
+		 * @return Returns the table index.
+		 */
+		public int getIndex(){ return index; }
+	}
+
+	/**
+	 * Caps the number of keys the table holds, so that images with millions of rare colors cannot make it grow
+	 * without bound. Once the cap is reached a new key either makes room with EVICT_RAREST, which evicts
+	 * EVICTION_FRACTION of the cap, all with the lowest counts, or with OVERFLOW_BUCKET is not stored at all.
+	 * Either way its count, or the counts of the evicted keys, go to getOverflowCount(), so the total stays exact
+	 * and a FeatureVector can keep the rare colors' mass in its magnitude.
+	 * @param maxEntries The most keys the table may hold, or 0 to remove the cap.
+	 * @param capacityPolicy EVICT_RAREST or OVERFLOW_BUCKET.
+	 * @throws IllegalArgumentException If the policy is invalid or maxEntries is negative
+	 * @throws IllegalStateException If the table already holds more than maxEntries keys
+	 */
+	public void setCapacityLimit(int maxEntries, String capacityPolicy){
+		if (!capacityPolicy.equals(EVICT_RAREST) && !capacityPolicy.equals(OVERFLOW_BUCKET)){
+			throw new IllegalArgumentException("Only supports 'Evict Rarest' or 'Overflow Bucket'.");
+		}
+		if (maxEntries < 0){
+			throw new IllegalArgumentException("The entry cap cannot be negative");
+		}
+		if (maxEntries > 0 && currentSize > maxEntries){
+			throw new IllegalStateException("The table already holds " + currentSize + " keys");
+		}
+		this.maxEntries = maxEntries;
+		evictWhenFull   = capacityPolicy.equals(EVICT_RAREST);
+	}
+
+	/**
+	 * Tells whether a new key would pass the entry cap.
+	 * @return Returns true if there is a cap and the table is at it.
+	 */
+	private boolean isFull(){
+		return maxEntries > 0 && currentSize >= maxEntries;
+	}
+
+	/**
+	 * Evicts the keys with the lowest counts, in one sweep: EVICTION_FRACTION of the cap, so a sweep is only needed
+	 * every so often. The threshold is the count of the needed-th rarest key, found with a selection over the
+	 * counts; every key below it is evicted, then keys at it until enough are freed. Their counts are added to
+	 * overflowCount. The table is then rebuilt at the same size, which saves the collisions into rehashCollisions.
+	 */
+	private void evictRarest(){
+		finishResize();
+
+		long[] counts = new long[currentSize];
+		int n = 0;
+		for (int i = 0; i < keyTable.length; i++){
+			if (keyTable[i] >= 0){
+				counts[n++] = valueTable[i];
+			}
+		}
+		int needed = Math.min(n, Math.max(1, (int) (maxEntries * EVICTION_FRACTION)));
+		long threshold = selectSmallest(counts, n, needed - 1);
+		int atThreshold = needed; // Keys with the threshold count that may go, once every lower key has
+		for (int i = 0; i < n; i++){
+			if (counts[i] < threshold){
+				atThreshold--;
+			}
+		}
+
+		for (int i = 0; i < keyTable.length; i++){
+			if (keyTable[i] >= 0 && (valueTable[i] < threshold || (valueTable[i] == threshold && atThreshold-- > 0))){
+				overflowCount += valueTable[i];
+				keyTable[i] = TOMBSTONE;
+				valueTable[i] = 0L;
+				setOccupied(i, false);
+				currentSize--;
+				tombstones++;
+			}
+		}
+		compact(); // Clears the tombstones, which linear probing and Robin Hood hashing do not otherwise expect
+		rehashCollisions += finishResize();
+	}
+
+	/**
+	 * Finds the k-th smallest of the first n values with quickselect, reordering them.
+	 * @param values The values, which are partly sorted on return.
+	 * @param n The number of values to select from.
+	 * @param k The rank wanted, from 0 for the smallest to n - 1.
+	 * @return Returns the value that would be at index k if the first n values were sorted.
+	 */
+	private static long selectSmallest(long[] values, int n, int k){
+		int low = 0;
+		int high = n - 1;
+		while (low < high){
+			long pivot = values[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j){ // Hoare partition: values[low..j] <= pivot <= values[i..high]
+				while (values[i] < pivot){ i++; }
+				while (values[j] > pivot){ j--; }
+				if (i <= j){
+					long swap = values[i];
+					values[i++] = values[j];
+					values[j--] = swap;
+				}
+			}
+			if (k <= j){
+				high = j;
+			} else if (k >= i){
+				low = i;
+			} else {
+				return values[k]; // Between the two parts, so equal to the pivot
+			}
+		}
+		return values[k];
+	}
+
+	/**
+	 * Gets the total count of keys that were evicted, or that found the table full, under a capacity limit.
+	 * @return Returns the count in the overflow bucket.
+	 */
+	public long getOverflowCount(){ return overflowCount; }
+
+	/**
+	 * Gets the entry cap set by setCapacityLimit.
+	 * @return Returns the most keys the table may hold, or 0 if there is no cap.
+	 */
+	public int getMaxEntries(){ return maxEntries; }
+
+	/**
+	 * Turns telemetry on or off. While it is on, every put, increment and lookup adds its probe length to a
+	 * histogram, and resizes are counted and timed; see getTelemetry. Turning it on starts from zero.
+	 * While it is off the only cost is a null check per operation.
+	 * @param enabled True to collect telemetry.
+	 */
+	public void setTelemetry(boolean enabled){
+		probeHistogram = enabled ? new long[PROBE_HISTOGRAM_SIZE] : null;
+		maxProbeLength = 0;
+		nResizes = 0;
+		resizeNanos = 0L;
+	}
+
+	/**
+	 * Adds one operation to the probe-length histogram.
+	 * @param probeLength The number of slots probed past before the key or its insert point.
+	 */
+	private void recordProbe(int probeLength){
+		probeHistogram[Math.min(probeLength, PROBE_HISTOGRAM_SIZE - 1)]++;
+		if (probeLength > maxProbeLength){ maxProbeLength = probeLength; }
+	}
+
+	/**
+	 * Takes a snapshot of how the table is doing: probe lengths and resizes since telemetry was turned on, and
+	 * the current load factor and primary clusters (runs of slots with no empty slot between them). Finding the
+	 * clusters walks the whole table, so this is meant to be called now and then, not per operation.
+	 * @return Returns a new ColorHashTelemetry.
+	 * @throws IllegalStateException If telemetry is off
+	 */
+	public ColorHashTelemetry getTelemetry(){
+		if (probeHistogram == null){
+			throw new IllegalStateException("Telemetry is off; call setTelemetry(true) first");
+		}
+		finishResize();
+
+		// Primary clusters. A cluster that wraps past the end of the table is joined with the one at the start.
+		long[] clusterHistogram = new long[32]; // Clusters by floor(log2(size))
+		int nClusters = 0;
+		int maxCluster = 0;
+		long clusteredSlots = 0;
+		int firstEmpty = -1;
+		for (int i = 0; i < keyTable.length && firstEmpty < 0; i++){
+			if (keyTable[i] == EMPTY_SLOT){ firstEmpty = i; }
+		}
+		if (firstEmpty >= 0){
+			int run = 0;
+			for (int n = 1; n <= keyTable.length; n++){
+				int i = (firstEmpty + n) % keyTable.length;
+				if (keyTable[i] != EMPTY_SLOT){
+					run++;
+				} else if (run > 0){
+					clusterHistogram[31 - Integer.numberOfLeadingZeros(run)]++;
+					nClusters++;
+					clusteredSlots += run;
+					maxCluster = Math.max(maxCluster, run);
+					run = 0;
+				}
+			}
+		}
+
+		return new ColorHashTelemetry(probeHistogram.clone(), maxProbeLength, clusterHistogram, nClusters, maxCluster,
+				nClusters == 0 ? 0.0 : (double) clusteredSlots / nClusters, nResizes, resizeNanos,
+				currentSize, tombstones, keyTable.length);
+	}
+
+	/**
+	 * Gets the packed key bits of every slot. Empty slots hold EMPTY_SLOT and removed keys TOMBSTONE.
+	 * @return Returns the key array of the hash table
+	 */
+	int[] getKeyTable(){
+		finishResize();
+		return keyTable;
+	}
+
+	/**
+	 * Gets the value of every slot, parallel to getKeyTable().
+	 * @return Returns the value array of the hash table
+	 */
+	long[] getValueTable(){
+		finishResize();
+		return valueTable;
+	}
+
+	/**
+	 * Saves the table to a file in the layout read by MappedColorHash.open: a header with the bits per pixel,
+	 * collision method, sizing policy, hash strategy, load factor, size, table size and overflow count, then the key
+	 * array and the value array exactly as they are in memory. Reopening the file needs no rehashing.
+	 * <p>
+	 * The table is written to a temporary file in the same directory, which is then renamed over filename in one
+	 * atomic step. A process that still has the old file mapped keeps reading the old contents, never a half
+	 * written or truncated file.
+	 * @param filename The file to write. An existing file is replaced.
+	 * @throws IOException If the file cannot be written
+	 * @throws IllegalArgumentException If the hash strategy is not one of HashStrategy.STRATEGIES
+	 */
+	public void save(String filename) throws IOException {
+		finishResize();
+		long valuesOffset = MappedColorHash.valuesOffset(keyTable.length);
+		long fileSize = valuesOffset + 8L * valueTable.length;
+		Path target = Paths.get(filename).toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+				MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+				file.order(MappedColorHash.BYTE_ORDER);
+				file.putInt(MappedColorHash.MAGIC);
+				file.putInt(MappedColorHash.VERSION);
+				file.putInt(bpp);
+				file.putInt(MappedColorHash.methodCode(collisionMethod));
+				file.putInt(powerOfTwoSizing ? 1 : 0);
+				file.putInt(currentSize);
+				file.putInt(keyTable.length);
+				file.putInt(MappedColorHash.strategyCode(hashStrategy));
+				file.putDouble(rhLoadFactor);
+				file.putLong(overflowCount);
+				file.position(MappedColorHash.HEADER_BYTES);
+				file.asIntBuffer().put(keyTable);
+				file.position((int) valuesOffset);
+				file.asLongBuffer().put(valueTable);
+				file.force();
+				OffHeapColorHash.free(file);
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp); // Only left behind if something failed
+		}
 	}
 
 	/**
 	 * New Exception, called when trying to find a ColorKey that doesn't exist.
 	 */
-	class MissingColorKeyException extends Exception
+	static class MissingColorKeyException extends Exception
 	{
 		public MissingColorKeyException() {}
 		public MissingColorKeyException(String message)
@@ -367,7 +1443,7 @@ public class ColorHash {
 	/**
 	 * New Exception, called when trying to use invalid Load Factor for Collision Probing .
 	 */
-	class InvalidLoadFactorException extends Exception
+	static class InvalidLoadFactorException extends Exception
 	{
 		public InvalidLoadFactorException() {}
 		public InvalidLoadFactorException(String message)
@@ -377,4 +1453,3 @@ public class ColorHash {
 	}
 
 }
-
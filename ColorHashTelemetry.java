@@ -0,0 +1,93 @@
+/**
+ * ColorHashTelemetry is a snapshot of how a ColorHash is behaving, taken by ColorHash.getTelemetry.
+ * <p>
+ * Probe lengths count the slots passed over before an operation found its key or the place to
+ * insert it, so 0 means the key was at, or went into, its home slot. A primary cluster is a run of
+ * occupied or removed slots with no empty slot in it; long clusters are what make linear probing
+ * slow. Like ProbeStats, the data members are public so they can be read without getters.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class ColorHashTelemetry {
+	public final long nProbes;              // the number of operations recorded
+	public final double meanProbeLength;    // the average probe length
+	public final int p50ProbeLength;        // the median probe length
+	public final int p99ProbeLength;        // the probe length 99% of operations did not exceed
+	public final int maxProbeLength;        // the longest probe length
+	public final long[] probeHistogram;     // operations by probe length, the last entry counting all longer ones
+	public final int nClusters;             // the number of primary clusters in the table
+	public final int maxClusterSize;        // the largest primary cluster
+	public final double meanClusterSize;    // the average primary cluster size
+	public final long[] clusterHistogram;   // clusters by size: entry i counts sizes 2^i to 2^(i+1)-1
+	public final int nResizes;              // the number of resizes and compactions
+	public final long resizeNanos;          // the total time spent in them, in nanoseconds
+	public final int size;                  // the number of keys in the table
+	public final int tombstones;            // the number of removed keys still marking their slots
+	public final int tableSize;             // the number of slots
+	public final double loadFactor;         // size / tableSize
+
+	/**
+	 * Constructs a ColorHashTelemetry object. The arrays are kept, not copied.
+	 * @param probeHistogram Operations by probe length.
+	 * @param maxProbeLength The longest probe length.
+	 * @param clusterHistogram Clusters by floor(log2(size)).
+	 * @param nClusters The number of primary clusters.
+	 * @param maxClusterSize The largest primary cluster.
+	 * @param meanClusterSize The average primary cluster size.
+	 * @param nResizes The number of resizes and compactions.
+	 * @param resizeNanos The time spent in them.
+	 * @param size The number of keys.
+	 * @param tombstones The number of removed keys still in the table.
+	 * @param tableSize The number of slots.
+	 */
+	public ColorHashTelemetry(long[] probeHistogram, int maxProbeLength, long[] clusterHistogram, int nClusters,
+			int maxClusterSize, double meanClusterSize, int nResizes, long resizeNanos, int size, int tombstones,
+			int tableSize) {
+		long total = 0;
+		long lengthSum = 0;
+		for (int i = 0; i < probeHistogram.length; i++) {
+			total += probeHistogram[i];
+			lengthSum += probeHistogram[i] * i;
+		}
+		this.nProbes          = total;
+		this.meanProbeLength  = total == 0 ? 0.0 : (double) lengthSum / total;
+		this.p50ProbeLength   = percentile(probeHistogram, total, 0.50, maxProbeLength);
+		this.p99ProbeLength   = percentile(probeHistogram, total, 0.99, maxProbeLength);
+		this.maxProbeLength   = maxProbeLength;
+		this.probeHistogram   = probeHistogram;
+		this.nClusters        = nClusters;
+		this.maxClusterSize   = maxClusterSize;
+		this.meanClusterSize  = meanClusterSize;
+		this.clusterHistogram = clusterHistogram;
+		this.nResizes         = nResizes;
+		this.resizeNanos      = resizeNanos;
+		this.size             = size;
+		this.tombstones       = tombstones;
+		this.tableSize        = tableSize;
+		this.loadFactor       = (double) size / tableSize;
+	}
+
+	/**
+	 * Finds the smallest probe length that at least a fraction of the operations did not exceed.
+	 * @param histogram Operations by probe length.
+	 * @param total The sum of the histogram.
+	 * @param fraction The fraction, between 0 and 1.
+	 * @param max The longest probe length, returned when the answer falls in the overflow entry.
+	 * @return Returns the probe length, or 0 if nothing was recorded.
+	 */
+	private static int percentile(long[] histogram, long total, double fraction, int max) {
+		long needed = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < histogram.length - 1; i++) {
+			seen += histogram[i];
+			if (seen >= needed) { return i; }
+		}
+		return total == 0 ? 0 : max;
+	}
+
+	public String toString() {
+		return "ColorHashTelemetry[nProbes:"+nProbes+", meanProbeLength:"+meanProbeLength+", p50:"+p50ProbeLength
+				+", p99:"+p99ProbeLength+", max:"+maxProbeLength+", nClusters:"+nClusters+", maxClusterSize:"
+				+maxClusterSize+", meanClusterSize:"+meanClusterSize+", nResizes:"+nResizes+", resizeNanos:"
+				+resizeNanos+", loadFactor:"+loadFactor+", size:"+size+", tombstones:"+tombstones+"]";
+	}
+}
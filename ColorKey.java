@@ -26,24 +26,30 @@ public class ColorKey {
  */
 	public ColorKey(int r, int g, int b, int bpp) throws Exception {
 		bitsPerPixel = bpp;
+		bits = pack(r, g, b, bpp);
+	}
+	/**
+	 * Packs a color into the bits of a key without creating a ColorKey, for counting loops that
+	 * must not allocate. new ColorKey(r, g, b, bpp).getBits() gives the same value.
+	 * @param r	The red value of the input color. An int between 0 and 255.
+	 * @param g	The green value.
+	 * @param b	The blue value.
+	 * @param bpp	The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @return The low-order bpp bits holding the reduced r, g and b components.
+	 * @throws IllegalArgumentException If bpp is not a multiple of 3
+	 */
+	public static int pack(int r, int g, int b, int bpp) {
 		if ((bpp % 3)==0) {
 			int leftShift = bpp/3;
 			int rightShift = 8 - leftShift;
 			int mask = (1 << leftShift) - 1;
-			//System.out.println("leftShift = "+leftShift);
-			//System.out.println("rightShift = "+rightShift);
-			//System.out.println("mask = "+mask);
-			//System.out.println("leftShift = "+leftShift);
 			r >>= rightShift; r &= mask;
 			g >>= rightShift; g &= mask;
 			b >>= rightShift; b &= mask;
-			//System.out.println("r = "+r);
-			//System.out.println("g = "+g);
-			//System.out.println("b = "+b);
-			bits = (((r << leftShift)+ g)<<leftShift) + b;
+			return (((r << leftShift)+ g)<<leftShift) + b;
 		}
 		else {
-			throw new Exception("Unsupported number of bits per pixel; use a multiple of 3 between 3 and 24.");
+			throw new IllegalArgumentException("Unsupported number of bits per pixel; use a multiple of 3 between 3 and 24.");
 		}
 	}
 	/**
@@ -60,7 +66,19 @@ public class ColorKey {
 	public boolean equals(ColorKey other) {
 		return bits==other.bits;
 	}
+	/**
+	 * Two keys are equal when their packed bits are equal, the same rule as equals(ColorKey).
+	 * This lets keys rebuilt from a hash table's packed storage compare equal to the originals.
+	 */
+	public boolean equals(Object other) {
+		return (other instanceof ColorKey) && equals((ColorKey) other);
+	}
 	public int hashCode() { return (int) bits; }
+	/**
+	 * Gets the packed color components of this key.
+	 * @return The low-order bpp bits holding the reduced r, g and b components.
+	 */
+	public int getBits() { return bits; }
 	public String toString() {
 		return "ColorKey[bits per pixel:"+bitsPerPixel+", bits:"+bits+"]";
 	}
@@ -0,0 +1,91 @@
+/**
+ * ColorTable is the API shared by every table that counts ColorKeys.
+ * <p>
+ * ColorHash is the general purpose open addressing table. Other implementations trade
+ * generality for a particular property (for example bounded lookup cost), but all of them can
+ * be counted into a FeatureVector and compared with ComparePaintings.
+ * <p>
+ * Slots are addressed by index from 0 to getTableSize() - 1 so callers can walk the whole table.
+ * Empty slots return null from getKeyAt and -1 from getValueAt.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public interface ColorTable {
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	ResponseItem increment(ColorKey key);
+
+	/**
+	 * Inserts key into the table with associated value. If an entry already exists for key, overwrite the value.
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key.
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	ResponseItem colorHashPut(ColorKey key, long value);
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws Exception If the key does not exist
+	 */
+	ResponseItem colorHashGet(ColorKey key) throws Exception;
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	long getCount(ColorKey key);
+
+	/**
+	 * Gets the Key at the specified index.
+	 * @param tableIndex The slot index.
+	 * @return Returns the key in that slot, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	ColorKey getKeyAt(int tableIndex);
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The slot index.
+	 * @return Returns the value in that slot, or -1 if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	long getValueAt(int tableIndex);
+
+	/**
+	 * Passes every key and its value to an action. This default walks every slot through getKeyAt and
+	 * getValueAt; tables that can skip empty slots, or avoid creating keys, override it.
+	 * @param action The action to run for each entry.
+	 */
+	default void forEach(ColorCountConsumer action){
+		for (int i = 0; i < getTableSize(); i++){
+			ColorKey key = getKeyAt(i);
+			if (key != null){
+				action.accept(key.getBits(), getValueAt(i));
+			}
+		}
+	}
+
+	/**
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 */
+	double getLoadFactor();
+
+	/**
+	 * Gets the number of addressable slots, including empty ones.
+	 * @return Returns the current size of the table.
+	 */
+	int getTableSize();
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	int getBPP();
+}
@@ -10,12 +10,17 @@ public class ComparePaintings {
 	private static final int BPP = 6;
 	private static final int INITIAL_TABLE_SIZE = 3;
 	private static final double REHASH_LOAD_FACTOR = 0.4;
+	private static final long DIRECT_MEMORY_BUDGET = 4L << 20; // Count directly up to 18 bpp (2^18 longs = 2 MB)
+	private static final int CANDIDATES_PER_TOP_COLOR = 4;   // Space-Saving is reliable for about half its capacity
 
 	// Declare members
-	private ColorHash myCH;
+	private ColorTable myCH;
 	private FeatureVector myFV;
 	private long collisionSum;
 	private String probingMethod;
+	private HashStrategy hashStrategy;
+	private long directMemoryBudget;
+	private int maxEntries;
 
 	/**
 	 * Constructor for ComparePaintings. Simply initializes relevant values.
@@ -23,31 +28,47 @@ public class ComparePaintings {
 	public ComparePaintings(){
 		collisionSum = 0; // Used to sum complete number of collisions during a hashing process
 		probingMethod = ColorHash.LINEAR_PROBING; // Set default to linear probing. This can be changed.
+		hashStrategy = HashStrategy.IDENTITY; // Home slot = bits % table size. This can be changed.
+		directMemoryBudget = DIRECT_MEMORY_BUDGET; // Small key spaces skip hashing. Set to 0 to always hash.
+		maxEntries = 0; // No cap on the colors a ColorHash keeps. Set it to evict rare colors of noisy images.
 	}
 
 	/**
 	 * Loads the image, constructs the hash table, and counts the colors of the image.
 	 * @param filename The image to operate on.
 	 * @param bitsPerPixel Used to set our keyspace.
-	 * @return Returns a constructed ColorHash object using the loaded image.
+	 * @return Returns a populated table of color counts: a DirectColorTable if the key space fits within
+	 * directMemoryBudget, otherwise a ColorHash.
 	 */
-	ColorHash countColors(String filename, int bitsPerPixel) {
+	ColorTable countColors(String filename, int bitsPerPixel) {
 
 		ImageLoader il = new ImageLoader(filename);
 
 		// Construct hash table and populate it while counting total collisions
-		ResponseItem currentResponse;
 		collisionSum = 0;
 		try{
-			myCH = new ColorHash(INITIAL_TABLE_SIZE, bitsPerPixel, probingMethod, REHASH_LOAD_FACTOR);
+			myCH = ColorHash.forKeySpace(INITIAL_TABLE_SIZE, bitsPerPixel, probingMethod, REHASH_LOAD_FACTOR,
+					hashStrategy, directMemoryBudget);
 		}
 		catch (Exception InvalidLoadFactor){
 			System.out.println(InvalidLoadFactor);
 		}
-		for (int x = 0; x < il.getWidth(); x++) {
-			for (int y = 0; y < il.getHeight(); y++) {
-				currentResponse = myCH.increment(il.getColorKey(x, y, bitsPerPixel));
-				collisionSum += currentResponse.nCollisions;
+		if (myCH instanceof ColorHash) { // Count a column at a time, without creating a key or ResponseItem per pixel
+			ColorHash ch = (ColorHash) myCH;
+			if (maxEntries > 0) {
+				ch.setCapacityLimit(maxEntries, ColorHash.EVICT_RAREST);
+			}
+			ProbeStats stats = new ProbeStats();
+			int[] column = new int[il.getHeight()];
+			for (int x = 0; x < il.getWidth(); x++) {
+				ch.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length, stats);
+			}
+			collisionSum = stats.nCollisions;
+		} else { // A DirectColorTable never collides
+			DirectColorTable direct = (DirectColorTable) myCH;
+			int[] column = new int[il.getHeight()];
+			for (int x = 0; x < il.getWidth(); x++) {
+				direct.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length);
 			}
 		}
 
@@ -58,13 +79,237 @@ public class ComparePaintings {
 		return myCH;
 	}
 
+	/**
+	 * Counts the colors of an image, reusing a histogram file saved by an earlier run when there is one.
+	 * A missing, unreadable or corrupt histogram file is rebuilt by counting the image and saving the ColorHash,
+	 * and so is one older than the image, since the image has been edited since it was counted.
+	 * A MappedColorHash left in myCH by an earlier call is closed first, so it must not be used after this call.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param histogramFile The file holding the saved counts of the image at this bitsPerPixel.
+	 * @return Returns a MappedColorHash of the saved counts, or the freshly counted table if the histogram had to be
+	 * rebuilt.
+	 */
+	ColorTable countColorsCached(String filename, int bitsPerPixel, String histogramFile) {
+		if (myCH instanceof MappedColorHash){
+			((MappedColorHash) myCH).close();
+			myCH = null;
+		}
+
+		java.io.File histogram = new java.io.File(histogramFile);
+		if (histogram.exists() && histogram.lastModified() >= new java.io.File(filename).lastModified()){
+			MappedColorHash saved = null;
+			try {
+				saved = MappedColorHash.open(histogramFile);
+				if (saved.getBPP() == bitsPerPixel){
+					FeatureVector savedFV = new FeatureVector(bitsPerPixel);
+					savedFV.getTheCounts(saved);
+					myCH = saved;
+					myFV = savedFV;
+					return myCH;
+				}
+			} catch (java.io.IOException | RuntimeException e){
+				System.out.println(e); // Count the image again
+			}
+			if (saved != null){
+				saved.close();
+			}
+		}
+
+		long savedBudget = directMemoryBudget;
+		directMemoryBudget = 0; // Only a ColorHash can be saved
+		ColorTable counted = countColors(filename, bitsPerPixel);
+		directMemoryBudget = savedBudget;
+		if (counted instanceof ColorHash){
+			try {
+				((ColorHash) counted).save(histogramFile);
+			} catch (java.io.IOException e){
+				System.out.println(e);
+			}
+		}
+		return counted;
+	}
+
+	/**
+	 * Counts the colors of an image with several threads sharing one ConcurrentColorHash.
+	 * Each thread counts an interleaved set of columns.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param nThreads The number of counting threads.
+	 * @return Returns the populated table of color counts.
+	 */
+	ColorTable countColorsConcurrently(String filename, int bitsPerPixel, int nThreads) {
+
+		final ImageLoader il = new ImageLoader(filename);
+		final ConcurrentColorHash table;
+		try{
+			table = new ConcurrentColorHash(INITIAL_TABLE_SIZE, bitsPerPixel, REHASH_LOAD_FACTOR);
+		}
+		catch (Exception InvalidLoadFactor){
+			System.out.println(InvalidLoadFactor);
+			return null;
+		}
+
+		// Every thread sums its own collisions so the counting loop shares nothing but the table
+		final long[] threadCollisions = new long[nThreads];
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int first = t;
+			threads[t] = new Thread(() -> {
+				ProbeStats stats = new ProbeStats();
+				int[] column = new int[il.getHeight()];
+				for (int x = first; x < il.getWidth(); x += nThreads) {
+					table.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length, stats);
+				}
+				threadCollisions[first] = stats.nCollisions;
+			});
+			threads[t].start();
+		}
+		collisionSum = 0;
+		for (int t = 0; t < nThreads; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			collisionSum += threadCollisions[t];
+		}
+
+		myCH = table;
+		myFV = new FeatureVector(bitsPerPixel);
+		myFV.getTheCounts(myCH);
+
+		return myCH;
+	}
+
+	/**
+	 * Counts the colors of an image with several threads, each counting an interleaved set of columns into its
+	 * own ColorHash shard. The shards are merged once all threads are done.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param nThreads The number of counting threads.
+	 * @return Returns the merged table of color counts.
+	 */
+	ColorTable countColorsSharded(String filename, int bitsPerPixel, int nThreads) {
+
+		final ImageLoader il = new ImageLoader(filename);
+		final ShardedColorCounter counter;
+		try{
+			counter = new ShardedColorCounter(nThreads, INITIAL_TABLE_SIZE, bitsPerPixel, probingMethod,
+					REHASH_LOAD_FACTOR);
+		}
+		catch (Exception InvalidLoadFactor){
+			System.out.println(InvalidLoadFactor);
+			return null;
+		}
+
+		final long[] threadCollisions = new long[nThreads];
+		Thread[] threads = new Thread[nThreads];
+		for (int t = 0; t < nThreads; t++) {
+			final int first = t;
+			threads[t] = new Thread(() -> {
+				ColorHash shard = counter.getShard(first);
+				ProbeStats stats = new ProbeStats();
+				int[] column = new int[il.getHeight()];
+				for (int x = first; x < il.getWidth(); x += nThreads) {
+					shard.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length, stats);
+				}
+				threadCollisions[first] = stats.nCollisions;
+			});
+			threads[t].start();
+		}
+		collisionSum = 0;
+		for (int t = 0; t < nThreads; t++) {
+			try {
+				threads[t].join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			collisionSum += threadCollisions[t];
+		}
+
+		try{
+			myCH = counter.merge();
+		}
+		catch (Exception e){
+			System.out.println(e);
+			return null;
+		}
+		myFV = new FeatureVector(bitsPerPixel);
+		myFV.getTheCounts(myCH);
+
+		return myCH;
+	}
+
+	/**
+	 * Counts the colors of an image approximately, in a Count-Min sketch of fixed size instead of a table that
+	 * grows with the number of colors. The sketch tracks CANDIDATES_PER_TOP_COLOR candidates for each top color
+	 * wanted, and the FeatureVector is built from their estimates, so it holds the dominant colors of the image
+	 * and leaves the rarest at 0. There is no exact table, so myCH is cleared.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param width The number of counters per row of the sketch.
+	 * @param depth The number of rows of the sketch.
+	 * @param topColors The number of most frequent colors the FeatureVector should hold.
+	 * @return Returns the populated sketch.
+	 */
+	CountMinColorSketch countColorsApproximately(String filename, int bitsPerPixel, int width, int depth,
+			int topColors) {
+
+		ImageLoader il = new ImageLoader(filename);
+		CountMinColorSketch sketch = new CountMinColorSketch(bitsPerPixel, width, depth, true);
+		sketch.setCandidateTracking(CANDIDATES_PER_TOP_COLOR * topColors);
+		int[] column = new int[il.getHeight()];
+		for (int x = 0; x < il.getWidth(); x++) {
+			sketch.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length);
+		}
+		collisionSum = 0;
+
+		myCH = null;
+		myFV = new FeatureVector(bitsPerPixel);
+		myFV.getTheCounts(sketch);
+
+		return sketch;
+	}
+
+	/**
+	 * Estimates the number of distinct colors of an image without counting them, for choosing the bits per pixel
+	 * and initial table size, or for rejecting near-monochrome images early.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param columnStride 1 to read every column, n to sample every nth.
+	 * @return Returns the filled HyperLogLog, which can be merged with those of other images or tiles.
+	 */
+	HyperLogLog estimateColors(String filename, int bitsPerPixel, int columnStride) {
+		HyperLogLog hll = new HyperLogLog();
+		hll.addImage(new ImageLoader(filename), bitsPerPixel, columnStride);
+		return hll;
+	}
+
+	/**
+	 * Finds the dominant colors of an image without building a full table of its colors.
+	 * @param filename The image to operate on.
+	 * @param bitsPerPixel Used to set our keyspace.
+	 * @param capacity The number of colors to monitor; the top capacity / 2 or so are reliable.
+	 * @return Returns the counter, whose getTopColors lists the dominant colors.
+	 */
+	SpaceSavingColorCounter dominantColors(String filename, int bitsPerPixel, int capacity) {
+		ImageLoader il = new ImageLoader(filename);
+		SpaceSavingColorCounter counter = new SpaceSavingColorCounter(capacity, bitsPerPixel);
+		int[] column = new int[il.getHeight()];
+		for (int x = 0; x < il.getWidth(); x++) {
+			counter.incrementAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length);
+		}
+		return counter;
+	}
+
 	/**
 	 * Compute the similarity of two hash tables of color counts using cosine similarity
 	 * @param painting1 The first painting to compare.
 	 * @param painting2 The second painting to compare.
 	 * @return Returns the cosine similarity value, with 1 being an optimal match.
 	 */
-	double compare(ColorHash painting1, ColorHash painting2) {
+	double compare(ColorTable painting1, ColorTable painting2) {
 		FeatureVector fv1 = new FeatureVector(painting1.getBPP());
 		FeatureVector fv2 = new FeatureVector(painting2.getBPP());
 		fv1.getTheCounts(painting1);
@@ -94,30 +339,39 @@ public class ComparePaintings {
 		ComparePaintings monaCP = new ComparePaintings();
 		ComparePaintings starryCP = new ComparePaintings();
 		ComparePaintings christinaCP = new ComparePaintings();
-
-		// Print the table
-		System.out.println("Bits Per Pixel   C(Mona,linear)  C(Mona,quadratic)  C(Starry,linear) "
-				+ "C(Starry,quadratic) C(Christina,linear) C(Christina,quadratic)");
-		for (int bpp = 24; bpp >= 3; bpp-=3) {
-			System.out.format("%-17d", bpp);
-			monaCP.probingMethod = ColorHash.LINEAR_PROBING;
-			monaCP.countColors("MonaLisa.jpg", bpp);
-			System.out.format("%-16d", monaCP.collisionSum);
-			monaCP.probingMethod = ColorHash.QUAD_PROBING;
-			monaCP.countColors("MonaLisa.jpg", bpp);
-			System.out.format("%-19d", monaCP.collisionSum);
-			starryCP.probingMethod = ColorHash.LINEAR_PROBING;
-			starryCP.countColors("StarryNight.jpg", bpp);
-			System.out.format("%-17d", starryCP.collisionSum);
-			starryCP.probingMethod = ColorHash.QUAD_PROBING;
-			starryCP.countColors("StarryNight.jpg", bpp);
-			System.out.format("%-20d", starryCP.collisionSum);
-			christinaCP.probingMethod = ColorHash.LINEAR_PROBING;
-			christinaCP.countColors("ChristinasWorld.jpg", bpp);
-			System.out.format("%-20d", christinaCP.collisionSum);
-			christinaCP.probingMethod = ColorHash.QUAD_PROBING;
-			christinaCP.countColors("ChristinasWorld.jpg", bpp);
-			System.out.format("%-22d%n", christinaCP.collisionSum);
+		monaCP.directMemoryBudget = 0;      // Always hash: this test is about collisions
+		starryCP.directMemoryBudget = 0;
+		christinaCP.directMemoryBudget = 0;
+
+		// Print a table for each hash strategy
+		for (HashStrategy strategy : HashStrategy.STRATEGIES) {
+			monaCP.hashStrategy = strategy;
+			starryCP.hashStrategy = strategy;
+			christinaCP.hashStrategy = strategy;
+			System.out.println("Hash strategy: " + strategy.getName());
+			System.out.println("Bits Per Pixel   C(Mona,linear)  C(Mona,quadratic)  C(Starry,linear) "
+					+ "C(Starry,quadratic) C(Christina,linear) C(Christina,quadratic)");
+			for (int bpp = 24; bpp >= 3; bpp-=3) {
+				System.out.format("%-17d", bpp);
+				monaCP.probingMethod = ColorHash.LINEAR_PROBING;
+				monaCP.countColors("MonaLisa.jpg", bpp);
+				System.out.format("%-16d", monaCP.collisionSum);
+				monaCP.probingMethod = ColorHash.QUAD_PROBING;
+				monaCP.countColors("MonaLisa.jpg", bpp);
+				System.out.format("%-19d", monaCP.collisionSum);
+				starryCP.probingMethod = ColorHash.LINEAR_PROBING;
+				starryCP.countColors("StarryNight.jpg", bpp);
+				System.out.format("%-17d", starryCP.collisionSum);
+				starryCP.probingMethod = ColorHash.QUAD_PROBING;
+				starryCP.countColors("StarryNight.jpg", bpp);
+				System.out.format("%-20d", starryCP.collisionSum);
+				christinaCP.probingMethod = ColorHash.LINEAR_PROBING;
+				christinaCP.countColors("ChristinasWorld.jpg", bpp);
+				System.out.format("%-20d", christinaCP.collisionSum);
+				christinaCP.probingMethod = ColorHash.QUAD_PROBING;
+				christinaCP.countColors("ChristinasWorld.jpg", bpp);
+				System.out.format("%-22d%n", christinaCP.collisionSum);
+			}
 		}
 	}
 
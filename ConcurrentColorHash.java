@@ -0,0 +1,402 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * ConcurrentColorHash is a thread-safe ColorTable that many threads can count into at once.
+ * <p>
+ * It is a linear probing table over a power-of-two AtomicIntegerArray of keys and an AtomicLongArray
+ * of values. A new key claims an empty slot with one compare-and-set on the key array, and counts
+ * are changed with compare-and-set on the value array, so between resizes increment and
+ * colorHashPut take no locks and no thread ever waits for another.
+ * <p>
+ * Resizing is cooperative, but it is not lock-free. The thread that crosses the load factor
+ * allocates the next table, and every thread that then runs into the resize claims chunks of
+ * MIGRATION_CHUNK old slots and copies them across. A copied slot is first frozen (its value
+ * replaced by FROZEN, or an empty key replaced by MOVED_KEY) so no late writer can change it.
+ * Threads wait for the last chunk to be copied before they use the new table, so an entry is never
+ * updated in two places at once. The price is that a resize only ends when its slowest migrator
+ * does: if a thread is descheduled while copying a chunk, every other thread spins until it runs
+ * again. Sizing the table for the expected number of colors up front avoids resizes altogether.
+ * <p>
+ * The index accessors (getKeyAt, getValueAt, getTableSize) see the current table and are meant to be
+ * used once counting has finished.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class ConcurrentColorHash implements ColorTable {
+
+	// Constants
+	static final int MIGRATION_CHUNK = 1024;              // Old slots copied per claimed chunk of a resize
+	private static final int MOVED_KEY = -2;              // An empty slot sealed by a resize
+	private static final long FROZEN = Long.MIN_VALUE;    // The value of a slot that has been copied to the next table
+	private static final long ABSENT = Long.MIN_VALUE + 1; // Returned by lookup for a missing key
+	private static final int MIN_TABLE_SIZE = 16;
+
+	/**
+	 * One generation of the table, together with the state of its migration to the next one.
+	 */
+	private static class Table {
+		final AtomicIntegerArray keys;
+		final AtomicLongArray values;
+		final int mask;
+		final AtomicReference<Table> next = new AtomicReference<Table>(); // Set when a resize starts
+		final AtomicInteger claimedChunks = new AtomicInteger();             // Chunks handed out to migrators
+		final AtomicInteger copiedChunks = new AtomicInteger();              // Chunks fully copied
+
+		Table(int tableSize){
+			keys = new AtomicIntegerArray(tableSize);
+			values = new AtomicLongArray(tableSize);
+			mask = tableSize - 1;
+			for (int i = 0; i < tableSize; i++){
+				keys.set(i, ColorHash.EMPTY_SLOT);
+			}
+		}
+
+		int chunkCount(){
+			return (keys.length() + MIGRATION_CHUNK - 1) / MIGRATION_CHUNK;
+		}
+	}
+
+	// Members
+	private final AtomicReference<Table> table; // The current table
+	private final AtomicInteger currentSize;    // Number of distinct keys stored
+	private final int bpp;                      // bitsPerPixel
+	private final double rhLoadFactor;          // The rehash load factor
+
+	/**
+	 * Constructs a ConcurrentColorHash object.
+	 *
+	 * @param tableSize The initial number of slots, rounded up to a power of two.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param rehashLoadFactor The threshold that determines when to grow the table (# elements / table size)
+	 * @throws Exception If the load factor is invalid
+	 */
+	public ConcurrentColorHash(int tableSize, int bitsPerPixel, double rehashLoadFactor) throws Exception {
+		if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+			throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Concurrent Hashing");
+		}
+		rhLoadFactor = rehashLoadFactor;
+		bpp          = bitsPerPixel;
+		currentSize  = new AtomicInteger();
+		table        = new AtomicReference<Table>(
+				new Table(Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(Math.max(tableSize - 1, 1)) << 1)));
+	}
+
+	/**
+	 * Adds to, or overwrites, the value of a key, inserting the key if needed.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add, or the value to store.
+	 * @param overwrite True to store amount, false to add it.
+	 * @return Returns a ResponseItem with the resulting value.
+	 */
+	private ResponseItem update(int bits, long amount, boolean overwrite){
+		ProbeStats stats = new ProbeStats();
+		long result = update(bits, amount, overwrite, stats);
+		return new ResponseItem(result, (int) stats.nCollisions, stats.nRehashes > 0, stats.nUpdates > 0);
+	}
+
+	/**
+	 * Adds to, or overwrites, the value of a key, inserting the key if needed.
+	 * Retries on the next table whenever it runs into a resize.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add, or the value to store.
+	 * @param overwrite True to store amount, false to add it.
+	 * @param stats The accumulator to add to, or null to keep no statistics. Not shared between threads.
+	 * @return Returns the resulting value.
+	 */
+	private long update(int bits, long amount, boolean overwrite, ProbeStats stats){
+		boolean didRehash = false;
+		boolean didInsert = false;
+		int nCollisions = 0;
+		while (true){
+			Table t = table.get();
+			int index = ColorHash.mix(bits) & t.mask;
+			for (int probes = 0; probes <= t.mask; probes++){
+				int key = t.keys.get(index);
+				if (key == ColorHash.EMPTY_SLOT){
+					if (isOverLoaded(t)){
+						break; // Grow first
+					}
+					if (!t.keys.compareAndSet(index, ColorHash.EMPTY_SLOT, bits)){
+						probes--;
+						continue; // Lost the slot to another thread; look at it again
+					}
+					currentSize.incrementAndGet();
+					didInsert = true;
+					key = bits;
+				}
+				if (key == bits){
+					long result = addOrSet(t.values, index, amount, overwrite);
+					if (result != FROZEN){
+						if (stats != null){
+							stats.record(nCollisions, didRehash, !didInsert);
+						}
+						return result;
+					}
+					break; // Slot has been copied to the next table
+				}
+				if (key == MOVED_KEY){
+					break; // The table is being resized
+				}
+				nCollisions++;
+				index = (index + 1) & t.mask;
+			}
+			// Over the load factor, out of slots, or already resizing: grow, then retry on the next table
+			didRehash |= startResize(t);
+			helpResize(t);
+		}
+	}
+
+	/**
+	 * Changes a slot value with compare-and-set, unless the slot has been frozen by a resize.
+	 * @param values The value array holding the slot.
+	 * @param index The slot index.
+	 * @param amount The amount to add, or the value to store.
+	 * @param overwrite True to store amount, false to add it.
+	 * @return Returns the new value, or FROZEN if nothing was written.
+	 */
+	private static long addOrSet(AtomicLongArray values, int index, long amount, boolean overwrite){
+		while (true){
+			long current = values.get(index);
+			if (current == FROZEN){
+				return FROZEN;
+			}
+			long result = overwrite ? amount : current + amount;
+			if (values.compareAndSet(index, current, result)){
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Finds the value of a key without changing the table.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the value, or ABSENT if the key is not in the table.
+	 */
+	private long lookup(int bits){
+		while (true){
+			Table t = table.get();
+			int index = ColorHash.mix(bits) & t.mask;
+			boolean moved = false;
+			for (int probes = 0; probes <= t.mask && !moved; probes++){
+				int key = t.keys.get(index);
+				if (key == ColorHash.EMPTY_SLOT){
+					return ABSENT;
+				}
+				if (key == bits){
+					long value = t.values.get(index);
+					if (value != FROZEN){
+						return value;
+					}
+					moved = true;
+				}
+				if (key == MOVED_KEY){
+					moved = true;
+				}
+				index = (index + 1) & t.mask;
+			}
+			if (!moved && t.next.get() == null){
+				return ABSENT; // Probed the whole table
+			}
+			helpResize(t);
+		}
+	}
+
+	/**
+	 * Checks whether one more key would take a table over the load factor.
+	 * @param t The table to check.
+	 * @return Returns true if the table should grow first.
+	 */
+	private boolean isOverLoaded(Table t){
+		return (currentSize.get() + 1.0) / (t.mask + 1) >= rhLoadFactor;
+	}
+
+	/**
+	 * Allocates the next table of a resize, unless another thread already has.
+	 * @param t The table to grow.
+	 * @return Returns true if this thread started the resize.
+	 */
+	private boolean startResize(Table t){
+		return t.next.get() == null && t.next.compareAndSet(null, new Table((t.mask + 1) * 2));
+	}
+
+	/**
+	 * Copies chunks of a table into its next table until none are left, then waits for the chunks
+	 * other threads are still copying and installs the next table as the current one. This wait is
+	 * what makes resizing blocking: it lasts as long as the slowest thread takes to copy its chunk.
+	 * Does nothing if the table is not being resized.
+	 * @param t The table being resized.
+	 */
+	private void helpResize(Table t){
+		Table next = t.next.get();
+		if (next == null){
+			return;
+		}
+		int chunks = t.chunkCount();
+		int chunk;
+		while ((chunk = t.claimedChunks.getAndIncrement()) < chunks){
+			int end = Math.min(t.keys.length(), (chunk + 1) * MIGRATION_CHUNK);
+			for (int i = chunk * MIGRATION_CHUNK; i < end; i++){
+				copySlot(t, next, i);
+			}
+			t.copiedChunks.incrementAndGet();
+		}
+		while (t.copiedChunks.get() < chunks){
+			Thread.onSpinWait();
+		}
+		table.compareAndSet(t, next);
+	}
+
+	/**
+	 * Freezes one slot of a table and adds its entry to the next table.
+	 * @param t The table being resized.
+	 * @param next The table being filled.
+	 * @param index The slot to copy.
+	 */
+	private static void copySlot(Table t, Table next, int index){
+		// Seal an empty slot so no thread can claim it any more
+		if (t.keys.compareAndSet(index, ColorHash.EMPTY_SLOT, MOVED_KEY)){
+			return;
+		}
+		int bits = t.keys.get(index);
+		long value = t.values.getAndSet(index, FROZEN);
+		if (value == FROZEN){
+			return;
+		}
+		// Only migrators write to the next table until the resize is done, and every key is copied once
+		int nextIndex = ColorHash.mix(bits) & next.mask;
+		while (!next.keys.compareAndSet(nextIndex, ColorHash.EMPTY_SLOT, bits)){
+			nextIndex = (nextIndex + 1) & next.mask;
+		}
+		next.values.set(nextIndex, value);
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key. Long.MIN_VALUE and Long.MIN_VALUE + 1 are reserved.
+	 * @return Returns a ResponseItem that contains information about the task.
+	 * @throws IllegalArgumentException If value is one of the reserved FROZEN or ABSENT markers
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		if (value == FROZEN || value == ABSENT){
+			throw new IllegalArgumentException("Long.MIN_VALUE and Long.MIN_VALUE + 1 cannot be stored");
+		}
+		return update(key.getBits(), value, true);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * Safe to call from many threads at once.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	public ResponseItem increment(ColorKey key){
+		return update(key.getBits(), 1L, false);
+	}
+
+	/**
+	 * Increments a key given by its packed bits (see ColorKey.pack), without creating a ResponseItem.
+	 * Safe to call from many threads at once, as long as each thread passes its own ProbeStats.
+	 * @param bits The packed bits of the key to increment or insert.
+	 * @param stats The accumulator to add to, or null to keep no statistics.
+	 * @return Returns the new count of the key.
+	 */
+	public long incrementBits(int bits, ProbeStats stats){
+		return update(bits, 1L, false, stats);
+	}
+
+	/**
+	 * Increments a run of keys given by their packed bits, for example one column of an image.
+	 * Same as calling incrementBits(keys[i], stats) for each key in order.
+	 * @param keys The packed key bits.
+	 * @param offset The index of the first key to count.
+	 * @param length The number of keys to count.
+	 * @param stats The accumulator to add to, or null to keep no statistics. Not shared between threads.
+	 */
+	public void incrementAll(int[] keys, int offset, int length, ProbeStats stats){
+		for (int i = offset; i < offset + length; i++){
+			update(keys[i], 1L, false, stats);
+		}
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		long value = lookup(key.getBits());
+		if (value == ABSENT){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(value, 0, false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		long value = lookup(key.getBits());
+		return value == ABSENT ? 0L : value;
+	}
+
+	/**
+	 * Gets the Key at the specified index of the current table.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		Table t = table.get();
+		if (tableIndex > t.mask || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		int bits = t.keys.get(tableIndex);
+		if (bits < 0){ // EMPTY_SLOT or MOVED_KEY
+			return null;
+		}
+		try {
+			return new ColorKey(bits, bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location of the current table.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 */
+	public long getValueAt(int tableIndex){
+		Table t = table.get();
+		if (tableIndex > t.mask || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		return t.keys.get(tableIndex) < 0 ? -1L : t.values.get(tableIndex);
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize.get() + 1.0) / (table.get().mask + 1); }
+
+	/**
+	 * Gets the size of the current table. Since resizing can happen this is not a constant.
+	 * @return Returns the current size of the table, including empty spots.
+	 */
+	public int getTableSize(){ return table.get().mask + 1; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
@@ -0,0 +1,232 @@
+/**
+ * CountMinColorSketch counts colors approximately in a fixed amount of memory, however many
+ * distinct colors an image has.
+ * <p>
+ * The sketch is depth rows of width counters. Each row hashes a key to one of its counters and
+ * increment adds one to all depth of them; getCount returns the smallest. Every other key that
+ * shares a counter adds to it, so an estimate is never below the true count and, with N the total
+ * of all increments:
+ * <pre>
+ *     estimate &lt;= true count + (e / width) * N   with probability at least 1 - exp(-depth)
+ * </pre>
+ * forError picks width = ceil(e / epsilon) and depth = ceil(ln(1 / delta)) for an overcount of at
+ * most epsilon * N with probability 1 - delta. With conservative update, increment only raises the
+ * counters that are at the minimum, which keeps the same bounds with a smaller overcount in
+ * practice.
+ * <p>
+ * The sketch is not a ColorTable: it does not store keys, so it cannot list them. Every key of
+ * the key space gets an estimate of at least the noise in its counters, so a FeatureVector filled
+ * from every estimate makes any two images look alike. setCandidateTracking keeps a small
+ * Space-Saving counter of the colors actually seen beside the sketch, and
+ * FeatureVector.getTheCounts fills in only those.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class CountMinColorSketch {
+
+	// Constants
+	private static final int MIN_WIDTH = 16;
+	private static final int MAX_WIDTH = 1 << 26;
+	private static final long SEED = 0x5EEDC0C0AL;  // Fixed, so every sketch of a given size hashes the same way
+
+	// Members
+	private long[] counters;       // depth rows of width counters, row r starting at r * width
+	private long[] multipliers;    // Odd multiplier of each row's multiply-add-shift hash
+	private long[] addends;        // Addend of each row's hash
+	private int[] rowIndex;        // Scratch: the counter of each row for the key being updated
+	private int width;             // Counters per row, a power of two
+	private int widthBits;         // log2(width)
+	private int depth;             // Number of rows
+	private boolean conservative;  // True for conservative update
+	private long totalCount;       // Sum of all increments
+	private SpaceSavingColorCounter candidates; // The colors seen, for FeatureVector; null if not tracked
+	private int bpp;               // bitsPerPixel
+
+	/**
+	 * Constructs a CountMinColorSketch object.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param width The number of counters per row, rounded up to a power of two.
+	 * @param depth The number of rows.
+	 * @param conservativeUpdate True to only raise the counters at the minimum.
+	 * @throws IllegalArgumentException If depth is not positive
+	 */
+	public CountMinColorSketch(int bitsPerPixel, int width, int depth, boolean conservativeUpdate){
+		if (depth < 1){
+			throw new IllegalArgumentException("Depth must be at least 1");
+		}
+		this.width   = Math.min(MAX_WIDTH, Math.max(MIN_WIDTH, Integer.highestOneBit(Math.max(width - 1, 1)) << 1));
+		widthBits    = Integer.numberOfTrailingZeros(this.width);
+		this.depth   = depth;
+		conservative = conservativeUpdate;
+		bpp          = bitsPerPixel;
+		counters     = new long[this.width * depth];
+		rowIndex     = new int[depth];
+		multipliers  = new long[depth];
+		addends      = new long[depth];
+		java.util.Random random = new java.util.Random(SEED);
+		for (int r = 0; r < depth; r++){
+			multipliers[r] = random.nextLong() | 1L;
+			addends[r]     = random.nextLong();
+		}
+	}
+
+	/**
+	 * Creates a sketch sized for an error bound.
+	 * @param bitsPerPixel The number of bits per pixel.
+	 * @param epsilon The largest overcount, as a fraction of the total count.
+	 * @param delta The probability of an estimate exceeding that bound.
+	 * @param conservativeUpdate True to only raise the counters at the minimum.
+	 * @return Returns a sketch with width e / epsilon and depth ln(1 / delta), rounded up.
+	 * @throws IllegalArgumentException If epsilon or delta is not between 0 and 1
+	 */
+	public static CountMinColorSketch forError(int bitsPerPixel, double epsilon, double delta,
+			boolean conservativeUpdate){
+		if (epsilon <= 0 || epsilon >= 1 || delta <= 0 || delta >= 1){
+			throw new IllegalArgumentException("epsilon and delta must be between 0 and 1");
+		}
+		return new CountMinColorSketch(bitsPerPixel, (int) Math.min(MAX_WIDTH, Math.ceil(Math.E / epsilon)),
+				(int) Math.ceil(Math.log(1 / delta)), conservativeUpdate);
+	}
+
+	/**
+	 * Gets the counter of a key in one row, with a multiply-add-shift hash.
+	 * @param row The row.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the index of the counter in counters.
+	 */
+	private int counterIndex(int row, int bits){
+		return (row << widthBits) + (int) ((multipliers[row] * bits + addends[row]) >>> (64 - widthBits));
+	}
+
+	/**
+	 * Keeps the colors seen in a SpaceSavingColorCounter beside the sketch, so that FeatureVector.getTheCounts can
+	 * fill in only them. Every color of an image with at most capacity colors is kept, and beyond that every color
+	 * whose count is over getTotalCount() / capacity.
+	 * @param capacity The number of colors to keep, or 0 to stop tracking.
+	 * @throws IllegalStateException If keys have already been counted
+	 */
+	public void setCandidateTracking(int capacity){
+		if (totalCount > 0){
+			throw new IllegalStateException("Candidate tracking must be set before counting");
+		}
+		candidates = capacity > 0 ? new SpaceSavingColorCounter(capacity, bpp) : null;
+	}
+
+	/**
+	 * Gets the colors kept by setCandidateTracking.
+	 * @return Returns the candidate counter, or null if candidates are not tracked.
+	 */
+	SpaceSavingColorCounter getCandidates(){ return candidates; }
+
+	/**
+	 * Counts one more of a key.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the estimated count of the key after the increment.
+	 */
+	public long incrementBits(int bits){
+		totalCount++;
+		if (candidates != null){
+			candidates.incrementBits(bits);
+		}
+		long min = Long.MAX_VALUE;
+		if (!conservative){
+			for (int r = 0; r < depth; r++){
+				min = Math.min(min, ++counters[counterIndex(r, bits)]);
+			}
+			return min;
+		}
+		for (int r = 0; r < depth; r++){
+			rowIndex[r] = counterIndex(r, bits);
+			min = Math.min(min, counters[rowIndex[r]]);
+		}
+		min++;
+		for (int r = 0; r < depth; r++){
+			if (counters[rowIndex[r]] < min){ counters[rowIndex[r]] = min; }
+		}
+		return min;
+	}
+
+	/**
+	 * Counts one more of a key.
+	 * @param key The key to count.
+	 * @return Returns a ResponseItem with the estimated count after the increment. didUpdate is true if the
+	 * key had a non-zero estimate before; a sketch never collides or rehashes.
+	 */
+	public ResponseItem increment(ColorKey key){
+		long estimate = incrementBits(key.getBits());
+		return new ResponseItem(estimate, 0, false, estimate > 1);
+	}
+
+	/**
+	 * Counts a run of keys, such as a column from ImageLoader.getColorBitsColumn.
+	 * @param keys The packed bits of the keys.
+	 * @param offset The index of the first key to count.
+	 * @param length The number of keys to count.
+	 */
+	public void incrementAll(int[] keys, int offset, int length){
+		for (int i = offset; i < offset + length; i++){
+			incrementBits(keys[i]);
+		}
+	}
+
+	/**
+	 * Estimates the count of a key. The estimate is never below the true count.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the smallest of the key's counters.
+	 */
+	public long getCountBits(int bits){
+		long min = Long.MAX_VALUE;
+		for (int r = 0; r < depth; r++){
+			min = Math.min(min, counters[counterIndex(r, bits)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Estimates the count of a key. The estimate is never below the true count.
+	 * @param key The key to look for.
+	 * @return Returns the estimated count, 0 only if the key was never counted.
+	 */
+	public long getCount(ColorKey key){
+		return getCountBits(key.getBits());
+	}
+
+	/**
+	 * Gets the overcount that estimates stay within with probability getConfidence().
+	 * @return Returns (e / width) * getTotalCount(), rounded up.
+	 */
+	public long getErrorBound(){
+		return (long) Math.ceil(Math.E / width * totalCount);
+	}
+
+	/**
+	 * Gets the probability that an estimate is within getErrorBound() of the true count.
+	 * @return Returns 1 - exp(-depth).
+	 */
+	public double getConfidence(){
+		return 1 - Math.exp(-depth);
+	}
+
+	/**
+	 * Gets the sum of all increments.
+	 * @return Returns the total count.
+	 */
+	public long getTotalCount(){ return totalCount; }
+
+	/**
+	 * Gets the number of counters per row.
+	 * @return Returns the width.
+	 */
+	public int getWidth(){ return width; }
+
+	/**
+	 * Gets the number of rows.
+	 * @return Returns the depth.
+	 */
+	public int getDepth(){ return depth; }
+
+	/**
+	 * Gets the bits per pixel value for this sketch
+	 * @return Bits per pixel of the sketch
+	 */
+	public int getBPP(){ return bpp; }
+}
@@ -0,0 +1,361 @@
+import java.util.Random;
+
+/**
+ * CuckooColorHash is a ColorTable that uses cuckoo hashing, so a lookup never costs more than
+ * two table probes plus a scan of a tiny stash.
+ * <p>
+ * Every key has exactly two candidate slots, chosen by two independent multiply-shift hash functions.
+ * Inserting into an occupied pair kicks the resident of the first slot over to its other slot,
+ * and so on, until an empty slot turns up. If the kicking runs too long (usually a cycle), the
+ * homeless entry goes to a small stash. If the stash is full too, the table picks new hash
+ * functions and rehashes, growing only when repeated reseeding fails.
+ * <p>
+ * This suits read-heavy tables: insertion is slower than in ColorHash, but getCount and
+ * colorHashGet have a fixed worst case.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class CuckooColorHash implements ColorTable {
+
+	// Constants
+	static final int STASH_SIZE = 4;                    // Slots for entries that could not be placed
+	private static final int MIN_TABLE_SIZE = 4;        // Keeps the multiply-shift hash shift below 32
+	private static final int MAX_KICKS = 64;            // Kicks allowed before an insert gives up on the table
+	private static final int MAX_REHASH_ATTEMPTS = 8;   // Reseeds allowed before the table is made bigger
+
+	// Members
+	private int[] keyTable;         // Packed ColorKey bits of every slot, or ColorHash.EMPTY_SLOT
+	private long[] valueTable;      // The count/value paired with keyTable at the same index
+	private int[] stashKeys;        // Overflow entries, filled from index 0
+	private long[] stashValues;
+	private int stashCount;         // Number of entries in the stash
+	private int hashShift;          // 32 - log2(table length)
+	private int seed1;              // Odd multiplier of the first hash function
+	private int seed2;              // Odd multiplier of the second hash function
+	private Random seedSource;      // Picks new hash functions on rehash
+	private int currentSize;        // Number of elements currently in the table, stash included
+	private int bpp;                // bitsPerPixel
+	private double rhLoadFactor;    // The rehash load factor
+	private int placeCollisions;    // Occupied slots met by the most recent call to place()
+	private int rehashCollisions;   // Occupied slots met while rehashing
+	private int pendingKey;         // Entry left homeless by a failed place()
+	private long pendingValue;
+
+	/**
+	 * Constructs a CuckooColorHash object.
+	 *
+	 * @param tableSize The initial number of slots, rounded up to a power of two.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param rehashLoadFactor The threshold that determines when to grow the table (# elements / table size).
+	 * With one slot per bucket and two hash functions, cuckoo hashing only works below one half.
+	 * @throws Exception If the load factor is invalid
+	 */
+	public CuckooColorHash(int tableSize, int bitsPerPixel, double rehashLoadFactor) throws Exception {
+		if (rehashLoadFactor >= .5 || rehashLoadFactor <= 0){
+			throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Cuckoo Hashing");
+		}
+		rhLoadFactor = rehashLoadFactor;
+		bpp          = bitsPerPixel;
+		currentSize  = 0;
+		seedSource   = new Random(bitsPerPixel);
+		stashKeys    = new int[STASH_SIZE];
+		stashValues  = new long[STASH_SIZE];
+		allocate(Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(Math.max(tableSize - 1, 1)) << 1));
+	}
+
+	/**
+	 * Allocates empty tables of the given size and picks a fresh pair of hash functions.
+	 * @param tableSize The number of slots, a power of two.
+	 */
+	private void allocate(int tableSize){
+		keyTable   = new int[tableSize];
+		valueTable = new long[tableSize];
+		java.util.Arrays.fill(keyTable, ColorHash.EMPTY_SLOT);
+		stashCount = 0;
+		hashShift  = 32 - Integer.numberOfTrailingZeros(tableSize);
+		seed1      = seedSource.nextInt() | 1;
+		seed2      = seedSource.nextInt() | 1;
+	}
+
+	/**
+	 * First candidate slot of a key.
+	 * @param bits The packed bits of the key.
+	 * @return Returns a slot index.
+	 */
+	private int slot1(int bits){ return (bits * seed1) >>> hashShift; }
+
+	/**
+	 * Second candidate slot of a key.
+	 * @param bits The packed bits of the key.
+	 * @return Returns a slot index.
+	 */
+	private int slot2(int bits){ return (bits * seed2) >>> hashShift; }
+
+	/**
+	 * Finds where a key is stored. Looks at no more than the two candidate slots and the stash.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the table index (stash slots follow the main table), or -1 if the key is absent.
+	 */
+	private int findIndex(int bits){
+		int index = slot1(bits);
+		if (keyTable[index] == bits){ return index; }
+		index = slot2(bits);
+		if (keyTable[index] == bits){ return index; }
+		for (int i = 0; i < stashCount; i++){
+			if (stashKeys[i] == bits){ return keyTable.length + i; }
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts how many probes a lookup of the key meets before it finishes, to report as collisions.
+	 * @param bits The packed bits of the key.
+	 * @param index The result of findIndex for the key.
+	 * @return Returns 0 if the key was in its first slot, 1 if in its second, more for the stash or a miss.
+	 */
+	private int lookupCollisions(int bits, int index){
+		if (index == slot1(bits)){ return 0; }
+		if (index == slot2(bits)){ return 1; }
+		return index < 0 ? 2 + stashCount : 2 + index - keyTable.length;
+	}
+
+	/**
+	 * Tries to place a key that is not in the table, kicking residents between their two slots.
+	 * Sets placeCollisions to the number of occupied slots met on the way.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @return Returns true if the key, or whatever it displaced, found a slot or a place in the stash.
+	 * If false, the entry left homeless is in pendingKey/pendingValue.
+	 */
+	private boolean place(int bits, long value){
+		placeCollisions = 0;
+		int index = slot1(bits);
+		if (keyTable[index] != ColorHash.EMPTY_SLOT){
+			placeCollisions++;
+			index = slot2(bits);
+		}
+		for (int kick = 0; kick < MAX_KICKS && keyTable[index] != ColorHash.EMPTY_SLOT; kick++){
+			placeCollisions++;
+			// Swap the entry we carry with the resident, then carry the resident to its other slot
+			int residentKey = keyTable[index];
+			long residentValue = valueTable[index];
+			keyTable[index] = bits;
+			valueTable[index] = value;
+			bits = residentKey;
+			value = residentValue;
+			index = (slot1(bits) == index) ? slot2(bits) : slot1(bits);
+		}
+		if (keyTable[index] == ColorHash.EMPTY_SLOT){
+			keyTable[index] = bits;
+			valueTable[index] = value;
+			return true;
+		}
+		if (stashCount < STASH_SIZE){
+			stashKeys[stashCount] = bits;
+			stashValues[stashCount] = value;
+			stashCount++;
+			return true;
+		}
+		pendingKey = bits;
+		pendingValue = value;
+		return false;
+	}
+
+	/**
+	 * Inserts a key known to be absent, growing or rehashing as needed.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @return Returns a ResponseItem describing the insert.
+	 */
+	private ResponseItem insert(int bits, long value){
+		boolean didRehash = false;
+		int nCollisions = 0;
+		if (getLoadFactor() >= rhLoadFactor){
+			rehash(keyTable.length * 2, false);
+			nCollisions += rehashCollisions;
+			didRehash = true;
+		}
+		boolean placed = place(bits, value);
+		nCollisions += placeCollisions;
+		if (!placed){
+			rehash(keyTable.length, true); // Cycle: try new hash functions, reinserting the homeless entry too
+			nCollisions += rehashCollisions;
+			didRehash = true;
+		}
+		currentSize++;
+		return new ResponseItem(value, nCollisions, didRehash, false);
+	}
+
+	/**
+	 * Rebuilds the table with new hash functions, doubling the size whenever reseeding alone keeps failing.
+	 * Collisions met along the way are saved into rehashCollisions.
+	 * @param tableSize The number of slots to start with.
+	 * @param withPending True to also reinsert the entry left in pendingKey/pendingValue by a failed place().
+	 */
+	private void rehash(int tableSize, boolean withPending){
+		rehashCollisions = 0;
+
+		// Gather every entry before the arrays are replaced
+		int count = 0;
+		int[] keys = new int[currentSize + 1];
+		long[] values = new long[currentSize + 1];
+		for (int i = 0; i < keyTable.length; i++){
+			if (keyTable[i] != ColorHash.EMPTY_SLOT){
+				keys[count] = keyTable[i];
+				values[count++] = valueTable[i];
+			}
+		}
+		for (int i = 0; i < stashCount; i++){
+			keys[count] = stashKeys[i];
+			values[count++] = stashValues[i];
+		}
+		if (withPending){
+			keys[count] = pendingKey;
+			values[count++] = pendingValue;
+		}
+
+		boolean placedAll = false;
+		for (int attempt = 0; !placedAll; attempt++){
+			if (attempt > 0 && attempt % MAX_REHASH_ATTEMPTS == 0){ tableSize *= 2; }
+			allocate(tableSize);
+			placedAll = true;
+			for (int i = 0; i < count && placedAll; i++){
+				placedAll = place(keys[i], values[i]);
+				rehashCollisions += placeCollisions;
+			}
+		}
+		placeCollisions = 0;
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, value);
+		}
+		setValueAt(index, value);
+		return new ResponseItem(value, lookupCollisions(bits, index), false, true);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	public ResponseItem increment(ColorKey key){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, 1L);
+		}
+		long value = getValueAt(index) + 1;
+		setValueAt(index, value);
+		return new ResponseItem(value, lookupCollisions(bits, index), false, true);
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(getValueAt(index), lookupCollisions(bits, index), false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		int index = findIndex(key.getBits());
+		return index < 0 ? 0L : getValueAt(index);
+	}
+
+	/**
+	 * Gets the Key at the specified index. Indices past the main table address the stash.
+	 * @param tableIndex The slot index.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		int bits;
+		if (tableIndex < keyTable.length){
+			bits = keyTable[tableIndex];
+		} else {
+			int stashIndex = tableIndex - keyTable.length;
+			bits = stashIndex < stashCount ? stashKeys[stashIndex] : ColorHash.EMPTY_SLOT;
+		}
+		if (bits == ColorHash.EMPTY_SLOT){
+			return null;
+		}
+		try {
+			return new ColorKey(bits, bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location. Indices past the main table address the stash.
+	 * @param tableIndex The slot index.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 */
+	public long getValueAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		if (tableIndex < keyTable.length){
+			return keyTable[tableIndex] == ColorHash.EMPTY_SLOT ? -1L : valueTable[tableIndex];
+		}
+		int stashIndex = tableIndex - keyTable.length;
+		return stashIndex < stashCount ? stashValues[stashIndex] : -1L;
+	}
+
+	/**
+	 * Overwrites the value of an occupied slot.
+	 * @param tableIndex The slot index, as returned by findIndex.
+	 * @param value The new value.
+	 */
+	private void setValueAt(int tableIndex, long value){
+		if (tableIndex < keyTable.length){
+			valueTable[tableIndex] = value;
+		} else {
+			stashValues[tableIndex - keyTable.length] = value;
+		}
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / keyTable.length; }
+
+	/**
+	 * Gets the number of addressable slots: the main table followed by the stash.
+	 * @return Returns the current size of the table, including empty spots.
+	 */
+	public int getTableSize(){ return keyTable.length + STASH_SIZE; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
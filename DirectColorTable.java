@@ -0,0 +1,211 @@
+/**
+ * DirectColorTable is a ColorTable with one slot for every possible key, indexed directly by the
+ * packed color bits.
+ * <p>
+ * At low bits per pixel the whole key space is small (2^18 colors at 18 bpp), so a flat array of
+ * counts is both smaller and faster than a hash table: there is no hashing, no probing, no
+ * collisions and no resizing. ColorHash.forKeySpace picks this table whenever it fits in a memory
+ * budget and falls back to a ColorHash otherwise.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class DirectColorTable implements ColorTable {
+
+	// Members
+	private long[] counts;          // The value of every key, indexed by its bits
+	private long[] present;         // Bitmap of the keys that have been stored, so a stored 0 is not "empty"
+	private int currentSize;        // Number of keys stored
+	private int bpp;                // bitsPerPixel
+
+	/**
+	 * Constructs a DirectColorTable object covering the whole key space of bitsPerPixel.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 */
+	public DirectColorTable(int bitsPerPixel) {
+		bpp         = bitsPerPixel;
+		counts      = new long[1 << bitsPerPixel];
+		present     = new long[Math.max(1, (1 << bitsPerPixel) >>> 6)];
+		currentSize = 0;
+	}
+
+	/**
+	 * Gets the memory a DirectColorTable needs for a key space.
+	 * @param bitsPerPixel The number of bits per pixel.
+	 * @return Returns the number of bytes taken by the count array and the presence bitmap.
+	 */
+	static long bytesNeeded(int bitsPerPixel){
+		long keySpaceSize = 1L << bitsPerPixel;
+		return keySpaceSize * 8 + Math.max(8, keySpaceSize / 8);
+	}
+
+	/**
+	 * Checks whether a key has been stored.
+	 * @param bits The packed bits of the key.
+	 * @return Returns true if the key is in the table.
+	 */
+	private boolean isPresent(int bits){
+		return (present[bits >>> 6] & (1L << bits)) != 0;
+	}
+
+	/**
+	 * Stores a value for a key, marking it present.
+	 * @param bits The packed bits of the key.
+	 * @param value The value to store.
+	 * @return Returns true if the key was already present.
+	 */
+	private boolean store(int bits, long value){
+		boolean wasPresent = isPresent(bits);
+		if (!wasPresent){
+			present[bits >>> 6] |= 1L << bits;
+			currentSize++;
+		}
+		counts[bits] = value;
+		return wasPresent;
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task. There are never collisions.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		boolean didUpdate = store(key.getBits(), value);
+		return new ResponseItem(value, 0, false, didUpdate);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info. There are never collisions.
+	 */
+	public ResponseItem increment(ColorKey key){
+		int bits = key.getBits();
+		boolean didUpdate = isPresent(bits);
+		long value = didUpdate ? counts[bits] + 1 : 1L;
+		store(bits, value);
+		return new ResponseItem(value, 0, false, didUpdate);
+	}
+
+	/**
+	 * Increments a key given by its packed bits (see ColorKey.pack), without creating a key or ResponseItem.
+	 * @param bits The packed bits of the key to increment or insert.
+	 * @return Returns the new count of the key.
+	 */
+	public long incrementBits(int bits){
+		long value = isPresent(bits) ? counts[bits] + 1 : 1L;
+		store(bits, value);
+		return value;
+	}
+
+	/**
+	 * Increments a run of keys given by their packed bits, for example one column of an image.
+	 * Same as calling incrementBits(keys[i]) for each key in order.
+	 * @param keys The packed key bits.
+	 * @param offset The index of the first key to count.
+	 * @param length The number of keys to count.
+	 */
+	public void incrementAll(int[] keys, int offset, int length){
+		for (int i = offset; i < offset + length; i++){
+			incrementBits(keys[i]);
+		}
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		int bits = key.getBits();
+		if (!isPresent(bits)){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(counts[bits], 0, false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		int bits = key.getBits();
+		return isPresent(bits) ? counts[bits] : 0L;
+	}
+
+	/**
+	 * Gets the Key at the specified index, which is simply the key whose bits equal the index.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if that key has not been stored.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		if (!isPresent(tableIndex)){
+			return null;
+		}
+		try {
+			return new ColorKey(tableIndex, bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if that key has not been stored.
+	 */
+	public long getValueAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		return isPresent(tableIndex) ? counts[tableIndex] : -1L;
+	}
+
+	/**
+	 * Passes every stored key and its value to an action, finding them through the presence bitmap.
+	 * @param action The action to run for each entry.
+	 */
+	public void forEach(ColorCountConsumer action){
+		for (int word = 0; word < present.length; word++){
+			long bitsLeft = present[word];
+			while (bitsLeft != 0){
+				int bits = (word << 6) + Long.numberOfTrailingZeros(bitsLeft);
+				action.accept(bits, counts[bits]);
+				bitsLeft &= bitsLeft - 1; // Clear the lowest set bit
+			}
+		}
+	}
+
+	/**
+	 * Gets the count array, indexed by key bits. Keys that were never stored hold 0.
+	 * @return Returns the count array of the table
+	 */
+	long[] getCounts(){
+		return counts;
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the fraction of the key space in use.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / counts.length; }
+
+	/**
+	 * Gets the size of the table, which is the size of the key space and never changes.
+	 * @return Returns 2^bpp.
+	 */
+	public int getTableSize(){ return counts.length; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
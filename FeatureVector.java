@@ -15,6 +15,7 @@
 public class FeatureVector {
 
 	long[] colorCounts;
+	long overflowCount; // Mass of colors a capacity-limited table did not keep, counted in the magnitude only
 	int bitsPerPixel;
 	int keySpaceSize;
 
@@ -39,23 +40,92 @@ public class FeatureVector {
 	 * @param ch The ColorHash object to be counted.
 	 */
 	public void getTheCounts(ColorHash ch) {
-		for (int i = 0; i < ch.getTableSize(); i++) {
-			if (ch.getHashTable()[i] != null){ // if entry is found in hash table, add it.
-				ColorKey key = ch.getHashTable()[i].getKey();
-				long value = ch.getHashTable()[i].getValue();
-				colorCounts[key.hashCode()] = value;
+		ch.forEach((bits, count) -> colorCounts[bits] = count); // Only visits occupied slots
+		overflowCount = ch.getOverflowCount();
+	}
+
+	/**
+	 * Copies the counts of a DirectColorTable, which are already in key order.
+	 * @param table The DirectColorTable to be counted.
+	 */
+	public void getTheCounts(DirectColorTable table) {
+		System.arraycopy(table.getCounts(), 0, colorCounts, 0, keySpaceSize);
+	}
+
+	/**
+	 * Goes through the mapped key array of a saved table and copies its counts, without creating any keys.
+	 * @param table The MappedColorHash to be counted.
+	 */
+	public void getTheCounts(MappedColorHash table) {
+		int tableSize = table.getTableSize();
+		for (int i = 0; i < tableSize; i++) {
+			int key = table.getKeyBitsAt(i);
+			if (key >= 0){ // if entry is found in the table, add it. EMPTY_SLOT and TOMBSTONE are negative.
+				colorCounts[key] = table.getValueAt(i);
+			}
+		}
+		overflowCount = table.getOverflowCount();
+	}
+
+	/**
+	 * Fills the vector from the estimates of a sketch. The result is approximate: no count is below the true one,
+	 * and each is within sketch.getErrorBound() of it with probability sketch.getConfidence().
+	 * <p>
+	 * Every key has an estimate of at least the collisions in its counters, so filling in every key would add the
+	 * same noise to every component and make images with no colors in common look alike. With candidate tracking
+	 * on, only the candidate colors are filled in, each with the smaller of its two upper bounds. Without it, the
+	 * noise floor of about getTotalCount() / getWidth() is taken off every estimate and keys at or below it are
+	 * left at 0.
+	 * @param sketch The CountMinColorSketch to be counted.
+	 */
+	public void getTheCounts(CountMinColorSketch sketch) {
+		java.util.Arrays.fill(colorCounts, 0L);
+		SpaceSavingColorCounter candidates = sketch.getCandidates();
+		if (candidates != null) {
+			for (int bits : candidates.getTopColors(candidates.getCapacity())) {
+				colorCounts[bits] = Math.min(sketch.getCountBits(bits), candidates.getCountBits(bits));
 			}
+			return;
+		}
+		long noiseFloor = sketch.getTotalCount() / sketch.getWidth();
+		for (int bits = 0; bits < keySpaceSize; bits++) {
+			colorCounts[bits] = Math.max(0L, sketch.getCountBits(bits) - noiseFloor);
+		}
+	}
+
+	/**
+	 * Counts any kind of ColorTable. ColorHash, DirectColorTable and MappedColorHash are read straight from their arrays;
+	 * other tables are walked with their forEach.
+	 * @param table The ColorTable to be counted.
+	 */
+	public void getTheCounts(ColorTable table) {
+		if (table instanceof ColorHash){
+			getTheCounts((ColorHash) table);
+			return;
+		}
+		if (table instanceof DirectColorTable){
+			getTheCounts((DirectColorTable) table);
+			return;
+		}
+		if (table instanceof MappedColorHash){
+			getTheCounts((MappedColorHash) table);
+			return;
 		}
+		table.forEach((bits, count) -> colorCounts[bits] = count);
 	}
 
 	/**
 	 * Compares two FeatureVectors using cosine similarity.
+	 * The overflow counts of capacity-limited tables add to the magnitudes, so the rare colors they dropped still
+	 * weigh as much as they did in the image. They are left out of the dot product: the overflow of two images
+	 * holds different colors, so it is not evidence that they are alike.
 	 * @param other The other FeatureVector to compare to this one.
 	 * @return Returns the cosine similarity with a max value of 1 (1 means perfect similarity)
 	 */
 	public double cosineSimilarity(FeatureVector other) {
 		double dotProductResult = dotProduct(this.colorCounts, other.colorCounts);
-		double vectorMagnitudeProductResult = vectorMagnitudeProduct(this.colorCounts, other.colorCounts);
+		double vectorMagnitudeProductResult = vectorMagnitudeProduct(this.colorCounts, other.colorCounts,
+				this.overflowCount, other.overflowCount);
 
 		return dotProductResult / vectorMagnitudeProductResult;
 	}
@@ -82,11 +152,13 @@ public class FeatureVector {
 	 * Compute the product of the magnitude of two vectors.
 	 * @param A The first vector operand.
 	 * @param B The second vector operand.
+	 * @param extraA One more component of A.
+	 * @param extraB One more component of B.
 	 * @return Returns the product of the magnitude of two vectors.
 	 */
-	private double vectorMagnitudeProduct(long[] A, long[] B){
-		double sumA = 0;
-		double sumB = 0;
+	private double vectorMagnitudeProduct(long[] A, long[] B, long extraA, long extraB){
+		double sumA = Math.pow((double)extraA, 2.0);
+		double sumB = Math.pow((double)extraB, 2.0);
 
 		for (int i = 0; i < A.length; i++) {
 			sumA += Math.pow((double)A[i], 2.0);
@@ -0,0 +1,105 @@
+/**
+ * HashStrategy turns the packed bits of a ColorKey into the home slot of a ColorHash.
+ * <p>
+ * Packed color bits are far from random: similar colors differ only in their low bits, so with the
+ * identity hash a smooth gradient fills a run of neighbouring slots, which is the worst case for
+ * linear probing. The other strategies spread such keys over the whole table.
+ * <p>
+ * A strategy has no state that changes, so one instance can be shared by any number of tables.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public interface HashStrategy {
+
+	/** The packed bits themselves: slot = bits % size. The classic layout of a prime-sized ColorHash. */
+	HashStrategy IDENTITY = new Identity();
+	/** Fibonacci (golden ratio) multiplicative hashing: the top bits of bits * 2^32 / phi. Best with power-of-two sizing. */
+	HashStrategy FIBONACCI = new Fibonacci();
+	/** The Murmur3 32-bit finalizer. The default for power-of-two sizing. */
+	HashStrategy MURMUR3 = new Murmur3();
+	/** Tabulation hashing with fixed random tables, so that tables saved by one run can be read by another. */
+	HashStrategy TABULATION = new Tabulation(0x5EEDC0102L);
+	/** Every built-in strategy, in the order their codes are written to ColorHash files. */
+	HashStrategy[] STRATEGIES = { IDENTITY, FIBONACCI, MURMUR3, TABULATION };
+
+	/**
+	 * Gets the home slot of a key.
+	 * @param bits The packed bits of the key, which are never negative.
+	 * @param tableLength The size of the table.
+	 * @param powerOfTwo True if tableLength is a power of two, which lets the hash be reduced with a mask or shift.
+	 * @return Returns a slot index in [0, tableLength).
+	 */
+	int homeSlot(int bits, int tableLength, boolean powerOfTwo);
+
+	/**
+	 * Gets the name of the strategy, for printing.
+	 * @return Returns the name.
+	 */
+	String getName();
+
+	/**
+	 * The identity hash.
+	 */
+	final class Identity implements HashStrategy {
+		public int homeSlot(int bits, int tableLength, boolean powerOfTwo){
+			return powerOfTwo ? bits & (tableLength - 1) : bits % tableLength;
+		}
+
+		public String getName(){ return "Identity"; }
+	}
+
+	/**
+	 * Fibonacci hashing. The low bits of a product only depend on the low bits of the key, so a power-of-two
+	 * table takes its slot from the top bits instead.
+	 */
+	final class Fibonacci implements HashStrategy {
+		public int homeSlot(int bits, int tableLength, boolean powerOfTwo){
+			int h = bits * 0x9E3779B9;
+			if (powerOfTwo){
+				return tableLength == 1 ? 0 : h >>> Integer.numberOfLeadingZeros(tableLength - 1);
+			}
+			return (h >>> 1) % tableLength;
+		}
+
+		public String getName(){ return "Fibonacci"; }
+	}
+
+	/**
+	 * The Murmur3 finalizer, whose every output bit depends on every input bit.
+	 */
+	final class Murmur3 implements HashStrategy {
+		public int homeSlot(int bits, int tableLength, boolean powerOfTwo){
+			int h = ColorHash.mix(bits);
+			return powerOfTwo ? h & (tableLength - 1) : (h >>> 1) % tableLength;
+		}
+
+		public String getName(){ return "Murmur3"; }
+	}
+
+	/**
+	 * Simple tabulation hashing: the XOR of one random table entry per byte of the key. Keys are at most
+	 * 24 bits, so three tables of 256 entries cover them, and each lookup stays in L1 cache.
+	 */
+	final class Tabulation implements HashStrategy {
+		private final int[][] tables = new int[3][256];
+
+		/**
+		 * Constructs a Tabulation hash.
+		 * @param seed Seeds the random tables. Equal seeds give equal hashes.
+		 */
+		public Tabulation(long seed){
+			java.util.Random random = new java.util.Random(seed);
+			for (int[] table : tables){
+				for (int i = 0; i < table.length; i++){
+					table[i] = random.nextInt();
+				}
+			}
+		}
+
+		public int homeSlot(int bits, int tableLength, boolean powerOfTwo){
+			int h = tables[0][bits & 0xFF] ^ tables[1][(bits >>> 8) & 0xFF] ^ tables[2][(bits >>> 16) & 0xFF];
+			return powerOfTwo ? h & (tableLength - 1) : (h >>> 1) % tableLength;
+		}
+
+		public String getName(){ return "Tabulation"; }
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * HopscotchColorHash is a ColorTable that uses hopscotch hashing, so every key is stored within
+ * a fixed neighborhood of NEIGHBORHOOD slots starting at its home slot.
+ * <p>
+ * Each home slot keeps a hop bitmap whose bit i says that slot home + i holds a key that hashes
+ * to this home. A lookup reads one bitmap and then only the slots it names, all of them inside one
+ * or two cache lines of the key and value arrays. Insertion finds the nearest empty slot by linear
+ * probing and, while it is too far from home, hops it backwards by moving some closer entry into it
+ * without taking that entry out of its own neighborhood. When no such move exists the table grows.
+ * <p>
+ * Because a lookup never leaves the neighborhood, its cost stays flat even at load factors above 0.9.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class HopscotchColorHash implements ColorTable {
+
+	// Constants
+	static final int NEIGHBORHOOD = 32;              // Width of a hop bitmap (bits in an int)
+	private static final int MIN_TABLE_SIZE = 32;    // Never smaller than one neighborhood
+	private static final int MAX_SEARCH = 4096;      // Slots probed for an empty slot before growing instead
+
+	// Members
+	private int[] keyTable;         // Packed ColorKey bits of every slot, or ColorHash.EMPTY_SLOT
+	private long[] valueTable;      // The count/value paired with keyTable at the same index
+	private int[] hopInfo;          // Per home slot, a bitmap of the neighborhood slots holding its keys
+	private int mask;               // Table length - 1; the length is a power of two
+	private int hashShift;          // 32 - log2(table length)
+	private int currentSize;        // Number of elements currently in the table
+	private int bpp;                // bitsPerPixel
+	private double rhLoadFactor;    // The rehash load factor
+	private int rehashCollisions;   // Occupied slots met while rehashing
+
+	/**
+	 * Constructs a HopscotchColorHash object.
+	 *
+	 * @param tableSize The initial number of slots, rounded up to a power of two and at least one neighborhood.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param rehashLoadFactor The threshold that determines when to grow the table (# elements / table size)
+	 * @throws Exception If the load factor is invalid
+	 */
+	public HopscotchColorHash(int tableSize, int bitsPerPixel, double rehashLoadFactor) throws Exception {
+		if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+			throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Hopscotch Hashing");
+		}
+		rhLoadFactor = rehashLoadFactor;
+		bpp          = bitsPerPixel;
+		currentSize  = 0;
+		allocate(Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(Math.max(tableSize - 1, 1)) << 1));
+	}
+
+	/**
+	 * Allocates empty tables of the given size.
+	 * @param tableSize The number of slots, a power of two.
+	 */
+	private void allocate(int tableSize){
+		keyTable   = new int[tableSize];
+		valueTable = new long[tableSize];
+		hopInfo    = new int[tableSize];
+		java.util.Arrays.fill(keyTable, ColorHash.EMPTY_SLOT);
+		mask       = tableSize - 1;
+		hashShift  = 32 - Integer.numberOfTrailingZeros(tableSize);
+	}
+
+	/**
+	 * Home slot of a key. A Fibonacci multiplicative hash spreads the high bits of the packed colors
+	 * over the table, so neighboring colors do not crowd into the same neighborhood.
+	 * @param bits The packed bits of the key.
+	 * @return Returns a slot index.
+	 */
+	private int homeSlot(int bits){ return (bits * 0x9E3779B9) >>> hashShift; }
+
+	/**
+	 * Finds where a key is stored by visiting only the slots named in its home hop bitmap.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the slot index of the key, or -1 if it is absent.
+	 */
+	private int findIndex(int bits){
+		int home = homeSlot(bits);
+		int hops = hopInfo[home];
+		while (hops != 0){
+			int index = (home + Integer.numberOfTrailingZeros(hops)) & mask;
+			if (keyTable[index] == bits){ return index; }
+			hops &= hops - 1; // Clear the lowest set bit
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the slots a lookup of the key visits before reaching it, to report as collisions.
+	 * @param bits The packed bits of the key.
+	 * @param index The result of findIndex for the key.
+	 * @return Returns the number of other neighborhood entries checked first.
+	 */
+	private int lookupCollisions(int bits, int index){
+		int hops = hopInfo[homeSlot(bits)];
+		if (index < 0){
+			return Integer.bitCount(hops);
+		}
+		int offset = (index - homeSlot(bits)) & mask;
+		return Integer.bitCount(hops & ((1 << offset) - 1));
+	}
+
+	/**
+	 * Tries to store a key that is not in the table.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @return Returns the number of occupied slots probed and entries hopped, or -1 if there is no room
+	 * in the key's neighborhood and the table must grow.
+	 */
+	private int place(int bits, long value){
+		int nCollisions = 0;
+		int home = homeSlot(bits);
+
+		// Linear probe for the nearest empty slot
+		int distance = 0;
+		while (keyTable[(home + distance) & mask] != ColorHash.EMPTY_SLOT){
+			nCollisions++;
+			distance++;
+			if (distance >= MAX_SEARCH || distance > mask){ return -1; }
+		}
+
+		// Hop the empty slot back towards home until it is inside the neighborhood
+		while (distance >= NEIGHBORHOOD){
+			int empty = (home + distance) & mask;
+			boolean moved = false;
+			for (int back = NEIGHBORHOOD - 1; back > 0 && !moved; back--){
+				int candidateHome = (empty - back) & mask;
+				// Entries of candidateHome stored before the empty slot can move into it and stay in range
+				int movable = hopInfo[candidateHome] & ((1 << back) - 1);
+				if (movable != 0){
+					int offset = Integer.numberOfTrailingZeros(movable);
+					int from = (candidateHome + offset) & mask;
+					keyTable[empty] = keyTable[from];
+					valueTable[empty] = valueTable[from];
+					keyTable[from] = ColorHash.EMPTY_SLOT;
+					hopInfo[candidateHome] = (hopInfo[candidateHome] & ~(1 << offset)) | (1 << back);
+					distance -= back - offset;
+					nCollisions++;
+					moved = true;
+				}
+			}
+			if (!moved){ return -1; }
+		}
+
+		int index = (home + distance) & mask;
+		keyTable[index] = bits;
+		valueTable[index] = value;
+		hopInfo[home] |= 1 << distance;
+		return nCollisions;
+	}
+
+	/**
+	 * Inserts a key known to be absent, growing as needed.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @return Returns a ResponseItem describing the insert.
+	 */
+	private ResponseItem insert(int bits, long value){
+		boolean didRehash = false;
+		int nCollisions = 0;
+		if (getLoadFactor() >= rhLoadFactor){
+			resize(keyTable.length * 2);
+			nCollisions += rehashCollisions;
+			didRehash = true;
+		}
+		int placeCollisions = place(bits, value);
+		while (placeCollisions < 0){ // Neighborhood is full: grow early
+			resize(keyTable.length * 2);
+			nCollisions += rehashCollisions;
+			didRehash = true;
+			placeCollisions = place(bits, value);
+		}
+		nCollisions += placeCollisions;
+		currentSize++;
+		return new ResponseItem(value, nCollisions, didRehash, false);
+	}
+
+	/**
+	 * Moves every entry into a table of the given size, doubling again if some neighborhood overflows.
+	 * Collisions met along the way are saved into rehashCollisions.
+	 * @param tableSize The new number of slots, a power of two.
+	 */
+	private void resize(int tableSize){
+		int[] oldKeys = keyTable;
+		long[] oldValues = valueTable;
+		boolean placedAll = false;
+		while (!placedAll){
+			rehashCollisions = 0;
+			allocate(tableSize);
+			placedAll = true;
+			for (int i = 0; i < oldKeys.length && placedAll; i++){
+				if (oldKeys[i] != ColorHash.EMPTY_SLOT){
+					int placeCollisions = place(oldKeys[i], oldValues[i]);
+					placedAll = placeCollisions >= 0;
+					rehashCollisions += placeCollisions;
+				}
+			}
+			tableSize *= 2;
+		}
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, value);
+		}
+		valueTable[index] = value;
+		return new ResponseItem(value, lookupCollisions(bits, index), false, true);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	public ResponseItem increment(ColorKey key){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, 1L);
+		}
+		long value = valueTable[index] += 1;
+		return new ResponseItem(value, lookupCollisions(bits, index), false, true);
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(valueTable[index], lookupCollisions(bits, index), false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		int index = findIndex(key.getBits());
+		return index < 0 ? 0L : valueTable[index];
+	}
+
+	/**
+	 * Gets the Key at the specified index.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		if (keyTable[tableIndex] == ColorHash.EMPTY_SLOT){
+			return null;
+		}
+		try {
+			return new ColorKey(keyTable[tableIndex], bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 */
+	public long getValueAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		return keyTable[tableIndex] == ColorHash.EMPTY_SLOT ? -1L : valueTable[tableIndex];
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / keyTable.length; }
+
+	/**
+	 * Gets the current size of the table. Since resizing can happen this is not a constant.
+	 * @return Returns the current size of the table, including empty spots.
+	 */
+	public int getTableSize(){ return keyTable.length; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
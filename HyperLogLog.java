@@ -0,0 +1,199 @@
+/**
+ * HyperLogLog estimates how many distinct colors it has been given, in 2^precision bytes.
+ * <p>
+ * Each key is hashed to 64 bits. The first precision bits pick a register, which keeps the
+ * longest run of leading zeros seen in the rest of the hash; the harmonic mean of the registers
+ * gives the estimate. The relative standard error is about 1.04 / sqrt(2^precision), so 0.8% at
+ * the default precision of 14 (16 KB). The classic estimator is badly biased while many registers
+ * are still empty, which HLL++ fixes with empirical bias tables; estimate() instead uses Ertl's
+ * improved estimator (2017), which works from the histogram of register values and is unbiased
+ * from zero keys up, with no tables.
+ * <p>
+ * Two estimators of the same precision can be merged, for example the tiles of one image or a
+ * set of images, and the result is what one estimator given every key would hold. Adding a key
+ * twice changes nothing, so overlapping tiles are not counted twice.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class HyperLogLog {
+
+	// Constants
+	static final int DEFAULT_PRECISION = 14;
+	private static final int MIN_PRECISION = 4;
+	private static final int MAX_PRECISION = 18;
+
+	// Members
+	private byte[] registers;      // One more than the leading zeros of the hashes routed to each register, at most
+	private int precision;         // log2 of the number of registers
+
+	/**
+	 * Constructs a HyperLogLog object with the default precision.
+	 */
+	public HyperLogLog(){
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Constructs a HyperLogLog object.
+	 * @param precision log2 of the number of registers, from 4 to 18.
+	 * @throws IllegalArgumentException If precision is out of range
+	 */
+	public HyperLogLog(int precision){
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION){
+			throw new IllegalArgumentException("Precision must be from " + MIN_PRECISION + " to " + MAX_PRECISION);
+		}
+		this.precision = precision;
+		registers = new byte[1 << precision];
+	}
+
+	/**
+	 * Hashes packed color bits to 64 bits with the SplitMix64 finalizer.
+	 * @param bits The packed bits of a key.
+	 * @return Returns the hash.
+	 */
+	private static long hash64(int bits){
+		long h = bits + 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+
+	/**
+	 * Adds a key.
+	 * @param bits The packed bits of the key.
+	 */
+	public void addBits(int bits){
+		long h = hash64(bits);
+		int index = (int) (h >>> (64 - precision));
+		// Leading zeros of the remaining bits; the low guard bit caps the run at 64 - precision
+		byte rank = (byte) (Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1);
+		if (rank > registers[index]){
+			registers[index] = rank;
+		}
+	}
+
+	/**
+	 * Adds a key.
+	 * @param key The key to add.
+	 */
+	public void add(ColorKey key){
+		addBits(key.getBits());
+	}
+
+	/**
+	 * Adds a run of keys, such as a column from ImageLoader.getColorBitsColumn.
+	 * @param keys The packed bits of the keys.
+	 * @param offset The index of the first key.
+	 * @param length The number of keys.
+	 */
+	public void addAll(int[] keys, int offset, int length){
+		for (int i = offset; i < offset + length; i++){
+			addBits(keys[i]);
+		}
+	}
+
+	/**
+	 * Adds the keys of an image, or of a sample of its columns.
+	 * A sample can miss rare colors, so it estimates the colors of the sampled columns, not of the whole image.
+	 * @param il The image.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param columnStride 1 to read every column, n to read every nth.
+	 */
+	public void addImage(ImageLoader il, int bitsPerPixel, int columnStride){
+		int[] column = new int[il.getHeight()];
+		for (int x = 0; x < il.getWidth(); x += Math.max(1, columnStride)){
+			addAll(il.getColorBitsColumn(x, bitsPerPixel, column), 0, column.length);
+		}
+	}
+
+	/**
+	 * Adds every key of another estimator to this one.
+	 * @param other An estimator of the same precision. It is not changed.
+	 * @throws IllegalArgumentException If the precisions differ
+	 */
+	public void mergeFrom(HyperLogLog other){
+		if (other.precision != precision){
+			throw new IllegalArgumentException("Cannot merge a precision " + other.precision
+					+ " HyperLogLog into a precision " + precision + " one");
+		}
+		for (int i = 0; i < registers.length; i++){
+			if (other.registers[i] > registers[i]){
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * Estimates the number of distinct keys added.
+	 * @return Returns the estimate, rounded to the nearest whole number.
+	 */
+	public long estimate(){
+		int q = 64 - precision;         // Register values run from 0 to q + 1
+		int m = registers.length;
+		int[] histogram = new int[q + 2];
+		for (byte register : registers){
+			histogram[register]++;
+		}
+		double z = m * tau(1.0 - (double) histogram[q + 1] / m);
+		for (int k = q; k >= 1; k--){
+			z = 0.5 * (z + histogram[k]);
+		}
+		z += m * sigma((double) histogram[0] / m);
+		return Math.round(m / (2 * Math.log(2)) * m / z);
+	}
+
+	/**
+	 * The series sigma(x) = x + sum over k of x^(2^k) * 2^(k-1), which corrects for empty registers.
+	 * @param x The fraction of empty registers.
+	 * @return Returns sigma(x), infinite when every register is empty.
+	 */
+	private static double sigma(double x){
+		if (x == 1.0){
+			return Double.POSITIVE_INFINITY;
+		}
+		double y = 1.0;
+		double z = x;
+		double previous;
+		do {
+			x *= x;
+			previous = z;
+			z += x * y;
+			y += y;
+		} while (z != previous);
+		return z;
+	}
+
+	/**
+	 * The series tau(x), which corrects for registers that reached the largest value.
+	 * @param x One minus the fraction of registers at the largest value.
+	 * @return Returns tau(x).
+	 */
+	private static double tau(double x){
+		if (x == 0.0 || x == 1.0){
+			return 0.0;
+		}
+		double y = 1.0;
+		double z = 1.0 - x;
+		double previous;
+		do {
+			x = Math.sqrt(x);
+			previous = z;
+			y *= 0.5;
+			z -= (1.0 - x) * (1.0 - x) * y;
+		} while (z != previous);
+		return z / 3;
+	}
+
+	/**
+	 * Gets the relative standard error of estimate().
+	 * @return Returns 1.04 / sqrt(2^precision).
+	 */
+	public double getStandardError(){
+		return 1.04 / Math.sqrt(registers.length);
+	}
+
+	/**
+	 * Gets log2 of the number of registers.
+	 * @return Returns the precision.
+	 */
+	public int getPrecision(){ return precision; }
+}
@@ -47,6 +47,35 @@ public class ImageLoader {
 		}
 	}
 
+	/**
+	 * Gets the packed key bits of a pixel, the same as getColorKey(x, y, bitsPerPixel).getBits(),
+	 * without creating a ColorKey.
+	 * @param x The column of the pixel.
+	 * @param y The row of the pixel.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @return Returns the packed color bits.
+	 */
+	public int getColorBits(int x, int y, int bitsPerPixel) {
+		int rgb = bi.getRGB(x,  y);
+		return ColorKey.pack((rgb >> 16) & 255, (rgb >> 8) & 255, rgb & 255, bitsPerPixel);
+	}
+
+	/**
+	 * Gets the packed key bits of a whole column of pixels with one bulk read of the image.
+	 * @param x The column to read.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param column An array of at least getHeight() ints to fill, reused from column to column.
+	 * @return Returns column, holding the bits of pixel (x, y) at index y.
+	 */
+	public int[] getColorBitsColumn(int x, int bitsPerPixel, int[] column) {
+		bi.getRGB(x, 0, 1, height, column, 0, 1);
+		for (int y = 0; y < height; y++) {
+			int rgb = column[y];
+			column[y] = ColorKey.pack((rgb >> 16) & 255, (rgb >> 8) & 255, rgb & 255, bitsPerPixel);
+		}
+		return column;
+	}
+
 	/**
 	 * The main routine is only for basic testing of ImageLoader.
 	 */
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedColorHash is a read-only view of a ColorHash file written by ColorHash.save.
+ * <p>
+ * The file is memory mapped and its key and value arrays are read in place, so opening it costs
+ * no decoding, copying or rehashing no matter how many colors it holds, and processes that open
+ * the same file share its pages through the page cache. Lookups follow the probe sequence of
+ * the ColorHash that saved the file.
+ * <p>
+ * The file layout is little endian:
+ * <pre>
+ *  0  int    MAGIC
+ *  4  int    VERSION
+ *  8  int    bits per pixel
+ * 12  int    collision method (index into METHODS)
+ * 16  int    sizing policy (0 prime, 1 power of two)
+ * 20  int    number of keys
+ * 24  int    table size
+ * 28  int    hash strategy (index into HashStrategy.STRATEGIES)
+ * 32  double rehash load factor
+ * 40  long   overflow count (ColorHash.getOverflowCount)
+ * 48  int[table size]   keys, EMPTY_SLOT for empty slots and TOMBSTONE for removed keys
+ *     long[table size]  values, starting at the next multiple of 8
+ * </pre>
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class MappedColorHash implements ColorTable, AutoCloseable {
+
+	// Constants
+	static final int MAGIC = 0x434F4C48;             // "COLH"
+	static final int VERSION = 3;                    // 2 added the hash strategy, 3 the overflow count
+	static final int HEADER_BYTES = 48;
+	static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+	private static final String[] METHODS = { ColorHash.LINEAR_PROBING, ColorHash.QUAD_PROBING,
+			ColorHash.ROBIN_HOOD, ColorHash.DOUBLE_HASHING }; // Collision methods by their code in the header
+
+	// Members
+	private MappedByteBuffer file;  // The whole mapped file, or null once closed
+	private IntBuffer keys;         // View of the key array
+	private LongBuffer values;      // View of the value array
+	private ColorHash layout;       // An empty ColorHash with the file's settings, which supplies the probe sequence
+	private int currentSize;        // Number of keys in the file
+	private long overflowCount;     // Counts the saved table kept outside its keys
+	private int bpp;                // bitsPerPixel
+
+	/**
+	 * Maps a ColorHash file for reading.
+	 * @param filename The file written by ColorHash.save.
+	 * @return Returns a read-only view of the saved table.
+	 * @throws IOException If the file cannot be read or is not a ColorHash file
+	 */
+	public static MappedColorHash open(String filename) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)){
+			if (channel.size() < HEADER_BYTES){
+				throw new IOException("Not a ColorHash file: " + filename);
+			}
+			MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			file.order(BYTE_ORDER);
+			return new MappedColorHash(file, filename); // The mapping stays valid after the channel is closed
+		}
+	}
+
+	/**
+	 * Reads the header of a mapped file and sets up views of its arrays.
+	 * <p>
+	 * Everything a lookup relies on is checked, so a damaged file is rejected here rather than making a later
+	 * lookup fail or never return: the header fields must be in range and match the file length, and one scan of
+	 * the key array must find at least one empty slot, which ends every probe sequence, only keys inside the key
+	 * space of bpp, and exactly as many keys as the header says.
+	 * @param mappedFile The mapped file.
+	 * @param filename The name of the file, for error messages.
+	 * @throws IOException If the header is invalid or does not match the file length or contents
+	 */
+	private MappedColorHash(MappedByteBuffer mappedFile, String filename) throws IOException {
+		if (mappedFile.getInt(0) != MAGIC || mappedFile.getInt(4) != VERSION){
+			throw new IOException("Not a ColorHash file: " + filename);
+		}
+		int methodCode = mappedFile.getInt(12);
+		int strategyCode = mappedFile.getInt(28);
+		int sizingCode = mappedFile.getInt(16);
+		int tableSize = mappedFile.getInt(24);
+		bpp         = mappedFile.getInt(8);
+		currentSize = mappedFile.getInt(20);
+		if (methodCode < 0 || methodCode >= METHODS.length || sizingCode < 0 || sizingCode > 1
+				|| strategyCode < 0 || strategyCode >= HashStrategy.STRATEGIES.length
+				|| bpp < 3 || bpp > 24 || bpp % 3 != 0
+				|| tableSize < 1 || currentSize < 0 || currentSize >= tableSize
+				|| mappedFile.capacity() != valuesOffset(tableSize) + 8L * tableSize){
+			throw new IOException("Corrupt ColorHash file: " + filename);
+		}
+		int nKeys = 0;
+		boolean hasEmptySlot = false;
+		for (int i = 0; i < tableSize; i++){
+			int key = mappedFile.getInt(HEADER_BYTES + 4 * i);
+			if (key == ColorHash.EMPTY_SLOT){
+				hasEmptySlot = true;
+			} else if (key != ColorHash.TOMBSTONE){
+				if (key < 0 || key >= 1 << bpp){
+					throw new IOException("Corrupt ColorHash file: " + filename);
+				}
+				nKeys++;
+			}
+		}
+		if (!hasEmptySlot || nKeys != currentSize){
+			throw new IOException("Corrupt ColorHash file: " + filename);
+		}
+		file        = mappedFile;
+		overflowCount = mappedFile.getLong(40);
+		try {
+			layout = new ColorHash(1, bpp, METHODS[methodCode], mappedFile.getDouble(32),
+					sizingCode == 1 ? ColorHash.POWER_OF_TWO_SIZING : ColorHash.PRIME_SIZING,
+					HashStrategy.STRATEGIES[strategyCode]);
+		} catch (Exception e){
+			throw new IOException("Corrupt ColorHash file: " + filename, e);
+		}
+
+		mappedFile.position(HEADER_BYTES);
+		keys = mappedFile.slice().order(BYTE_ORDER).asIntBuffer();
+		keys.limit(tableSize);
+		mappedFile.position((int) valuesOffset(tableSize));
+		values = mappedFile.slice().order(BYTE_ORDER).asLongBuffer();
+		mappedFile.position(0);
+	}
+
+	/**
+	 * Gets where the value array starts in a file.
+	 * @param tableSize The number of slots.
+	 * @return Returns the byte offset of the first value, which is 8-byte aligned.
+	 */
+	static long valuesOffset(int tableSize){
+		return (HEADER_BYTES + 4L * tableSize + 7) & ~7L;
+	}
+
+	/**
+	 * Gets the header code of a collision method.
+	 * @param collisionMethod One of the ColorHash collision method constants.
+	 * @return Returns the index of the method in METHODS.
+	 */
+	static int methodCode(String collisionMethod){
+		for (int i = 0; i < METHODS.length; i++){
+			if (METHODS[i].equals(collisionMethod)){
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown collision method: " + collisionMethod);
+	}
+
+	/**
+	 * Gets the header code of a hash strategy.
+	 * @param hashStrategy One of HashStrategy.STRATEGIES.
+	 * @return Returns the index of the strategy in HashStrategy.STRATEGIES.
+	 */
+	static int strategyCode(HashStrategy hashStrategy){
+		for (int i = 0; i < HashStrategy.STRATEGIES.length; i++){
+			if (HashStrategy.STRATEGIES[i] == hashStrategy){
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Only the strategies in HashStrategy.STRATEGIES can be saved: "
+				+ hashStrategy.getName());
+	}
+
+	/**
+	 * Checks that the file is still mapped.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	private void checkOpen(){
+		if (file == null){
+			throw new IllegalStateException("MappedColorHash has been closed");
+		}
+	}
+
+	/**
+	 * Not supported: a mapped table is read-only.
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Never returns.
+	 * @throws UnsupportedOperationException Always
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		throw new UnsupportedOperationException("MappedColorHash is read-only");
+	}
+
+	/**
+	 * Not supported: a mapped table is read-only.
+	 * @param key The key to increment or insert.
+	 * @return Never returns.
+	 * @throws UnsupportedOperationException Always
+	 */
+	public ResponseItem increment(ColorKey key){
+		throw new UnsupportedOperationException("MappedColorHash is read-only");
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		checkOpen();
+		int bits = key.getBits();
+		int[] ixAndCols = layout.probing(keys, bits);
+		if (keys.get(ixAndCols[0]) != bits){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(values.get(ixAndCols[0]), ixAndCols[1], false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		checkOpen();
+		int bits = key.getBits();
+		int hashIndex = layout.probing(keys, bits)[0];
+		return keys.get(hashIndex) == bits ? values.get(hashIndex) : 0L;
+	}
+
+	/**
+	 * Gets the Key at the specified index.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		checkOpen();
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		int bits = keys.get(tableIndex);
+		if (bits < 0){ // EMPTY_SLOT or TOMBSTONE
+			return null;
+		}
+		try {
+			return new ColorKey(bits, bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public long getValueAt(int tableIndex){
+		checkOpen();
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		return keys.get(tableIndex) < 0 ? -1L : values.get(tableIndex);
+	}
+
+	/**
+	 * Gets the raw key of a slot, without creating a ColorKey.
+	 * There is no way to get a view of the mapped arrays themselves: close() unmaps the file at once, and a view
+	 * read after that would touch unmapped memory and crash the JVM. Every read goes through checkOpen() instead.
+	 * @param tableIndex The index of the table.
+	 * @return Returns the packed bits of the key, ColorHash.EMPTY_SLOT for an empty slot or ColorHash.TOMBSTONE
+	 * for a removed key.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	int getKeyBitsAt(int tableIndex){
+		checkOpen();
+		return keys.get(tableIndex);
+	}
+
+	/**
+	 * Unmaps the file right away, without waiting for the garbage collector, so that it can be replaced or
+	 * deleted. Every method that reads the table throws IllegalStateException afterwards. Calling it again does
+	 * nothing.
+	 */
+	public void close(){
+		if (file != null){
+			MappedByteBuffer mapped = file;
+			file = null;
+			keys = null;
+			values = null;
+			OffHeapColorHash.free(mapped);
+		}
+	}
+
+	/**
+	 * Gets the overflow count of the saved table.
+	 * @return Returns the total count of keys the table evicted or had no room for.
+	 */
+	public long getOverflowCount(){ return overflowCount; }
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the load factor the table had when it was saved.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / getTableSize(); }
+
+	/**
+	 * Gets the size of the saved table.
+	 * @return Returns the size of the table, including empty spots.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public int getTableSize(){
+		checkOpen();
+		return keys.limit();
+	}
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
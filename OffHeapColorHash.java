@@ -0,0 +1,320 @@
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * OffHeapColorHash is a linear probing ColorTable whose slots live in a direct ByteBuffer, outside
+ * the Java heap.
+ * <p>
+ * Each slot takes SLOT_BYTES bytes: the packed key bits in the first four and the count, 8-byte
+ * aligned, in the last eight, so a probe reads one key and its value from the same cache line. The
+ * garbage collector only sees one small buffer object per table however many colors it holds, so
+ * large sets of 24 bpp histograms do not slow down collection or need a big heap.
+ * <p>
+ * The memory is released by close(), or by a resize, without waiting for the garbage collector.
+ * The Foreign Memory API (an Arena handing out MemorySegments) would do that without reflection,
+ * but it is only final from Java 22 and this code still builds on older JDKs. The slots are
+ * therefore a direct ByteBuffer, freed through sun.misc.Unsafe.invokeCleaner where the JVM has it
+ * and left to the garbage collector where it does not. The buffer never leaves this class, so
+ * nothing can read it after it is freed.
+ * <p>
+ * A closed table throws IllegalStateException from every method that reads or changes its slots.
+ * getBPP still answers, and close does nothing the second time.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class OffHeapColorHash implements ColorTable, AutoCloseable {
+
+	// Constants
+	static final int SLOT_BYTES = 16;               // 4 bytes of key, 4 of padding, 8 of value
+	private static final int VALUE_OFFSET = 8;      // Byte offset of the value within a slot
+	private static final int MIN_TABLE_SIZE = 16;
+	private static final int MAX_TABLE_SIZE = 1 << 26; // Largest power of two whose buffer fits in an int index
+	private static final Object UNSAFE = findUnsafe(); // Frees direct buffers explicitly, if available
+
+	// Members
+	private ByteBuffer slots;       // tableSize * SLOT_BYTES bytes of native memory, or null once closed
+	private int mask;               // Table size - 1; the size is a power of two
+	private int currentSize;        // Number of elements currently in the table
+	private int bpp;                // bitsPerPixel
+	private double rhLoadFactor;    // The rehash load factor
+	private int rehashCollisions;   // Collisions met while rehashing
+
+	/**
+	 * Constructs an OffHeapColorHash object.
+	 *
+	 * @param tableSize The initial number of slots, rounded up to a power of two.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param rehashLoadFactor The threshold that determines when to grow the table (# elements / table size)
+	 * @throws Exception If the load factor is invalid
+	 */
+	public OffHeapColorHash(int tableSize, int bitsPerPixel, double rehashLoadFactor) throws Exception {
+		if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+			throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Off-Heap Hashing");
+		}
+		rhLoadFactor = rehashLoadFactor;
+		bpp          = bitsPerPixel;
+		currentSize  = 0;
+		slots        = allocate(Math.min(MAX_TABLE_SIZE,
+				Math.max(MIN_TABLE_SIZE, Integer.highestOneBit(Math.max(tableSize - 1, 1)) << 1)));
+		mask         = slots.capacity() / SLOT_BYTES - 1;
+	}
+
+	/**
+	 * Allocates native memory for a table with every slot marked empty.
+	 * @param tableSize The number of slots, a power of two.
+	 * @return Returns the slot buffer.
+	 */
+	private static ByteBuffer allocate(int tableSize){
+		ByteBuffer buffer = ByteBuffer.allocateDirect(tableSize * SLOT_BYTES).order(ByteOrder.nativeOrder());
+		for (int i = 0; i < tableSize; i++){
+			buffer.putInt(i * SLOT_BYTES, ColorHash.EMPTY_SLOT);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Looks up sun.misc.Unsafe, whose invokeCleaner frees a direct buffer right away.
+	 * @return Returns the Unsafe instance, or null if the JVM does not provide it.
+	 */
+	private static Object findUnsafe(){
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			java.lang.reflect.Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return field.get(null);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Releases the native memory of a buffer, or unmaps a mapped one. Without Unsafe it is left for the
+	 * garbage collector. The buffer, and any view of it, must not be used afterwards.
+	 * @param buffer A direct or mapped buffer.
+	 */
+	static void free(ByteBuffer buffer){
+		if (UNSAFE == null){
+			return;
+		}
+		try {
+			Method invokeCleaner = UNSAFE.getClass().getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(UNSAFE, buffer);
+		} catch (Exception e){
+			// Left for the garbage collector
+		}
+	}
+
+	/**
+	 * Gets the slot buffer of an open table.
+	 * @return Returns the slot buffer.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	private ByteBuffer slots(){
+		if (slots == null){
+			throw new IllegalStateException("OffHeapColorHash has been closed");
+		}
+		return slots;
+	}
+
+	/**
+	 * Linear probes for a key, starting at its home slot.
+	 * @param buffer The slots to search.
+	 * @param tableMask The table size - 1 of buffer.
+	 * @param bits The packed bits of the key.
+	 * @return Returns an int[2]: the slot holding the key or the empty slot where it belongs, then the number
+	 * of collisions.
+	 */
+	private static int[] probing(ByteBuffer buffer, int tableMask, int bits){
+		int index = ColorHash.mix(bits) & tableMask;
+		int nCollisions = 0;
+		int key;
+		while ((key = buffer.getInt(index * SLOT_BYTES)) != ColorHash.EMPTY_SLOT && key != bits){
+			nCollisions++;
+			index = (index + 1) & tableMask;
+		}
+		return new int[] {index, nCollisions};
+	}
+
+	/**
+	 * Stores a key and value in a slot.
+	 * @param buffer The slots to write.
+	 * @param tableIndex The slot index.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 */
+	private static void store(ByteBuffer buffer, int tableIndex, int bits, long value){
+		buffer.putInt(tableIndex * SLOT_BYTES, bits);
+		buffer.putLong(tableIndex * SLOT_BYTES + VALUE_OFFSET, value);
+	}
+
+	/**
+	 * Adds to, or overwrites, the value of a key, inserting the key if needed.
+	 * @param bits The packed bits of the key.
+	 * @param amount The amount to add, or the value to store.
+	 * @param overwrite True to store amount, false to add it.
+	 * @return Returns a ResponseItem with the resulting value.
+	 */
+	private ResponseItem update(int bits, long amount, boolean overwrite){
+		ByteBuffer buffer = slots();
+		int[] ixAndCols = probing(buffer, mask, bits);
+		int nCollisions = ixAndCols[1];
+		int valuePosition = ixAndCols[0] * SLOT_BYTES + VALUE_OFFSET;
+
+		if (buffer.getInt(ixAndCols[0] * SLOT_BYTES) == bits){ // Key found, update it
+			long value = overwrite ? amount : buffer.getLong(valuePosition) + amount;
+			buffer.putLong(valuePosition, value);
+			return new ResponseItem(value, nCollisions, false, true);
+		}
+
+		boolean didRehash = false;
+		if (getLoadFactor() >= rhLoadFactor && mask + 1 < MAX_TABLE_SIZE){
+			resize();
+			buffer = slots;
+			ixAndCols = probing(buffer, mask, bits);
+			nCollisions += rehashCollisions + ixAndCols[1];
+			didRehash = true;
+		}
+		store(buffer, ixAndCols[0], bits, amount);
+		currentSize++;
+		return new ResponseItem(amount, nCollisions, didRehash, false);
+	}
+
+	/**
+	 * Doubles the table, reinserts every entry and frees the old memory.
+	 * Collisions met along the way are saved into rehashCollisions.
+	 */
+	private void resize(){
+		ByteBuffer oldSlots = slots;
+		int oldTableSize = mask + 1;
+		slots = allocate(oldTableSize * 2);
+		mask = oldTableSize * 2 - 1;
+		rehashCollisions = 0;
+		for (int i = 0; i < oldTableSize; i++){
+			int bits = oldSlots.getInt(i * SLOT_BYTES);
+			if (bits != ColorHash.EMPTY_SLOT){
+				int[] ixAndCols = probing(slots, mask, bits);
+				rehashCollisions += ixAndCols[1];
+				store(slots, ixAndCols[0], bits, oldSlots.getLong(i * SLOT_BYTES + VALUE_OFFSET));
+			}
+		}
+		free(oldSlots);
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		return update(key.getBits(), value, true);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	public ResponseItem increment(ColorKey key){
+		return update(key.getBits(), 1L, false);
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		ByteBuffer buffer = slots();
+		int bits = key.getBits();
+		int[] ixAndCols = probing(buffer, mask, bits);
+		if (buffer.getInt(ixAndCols[0] * SLOT_BYTES) != bits){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(buffer.getLong(ixAndCols[0] * SLOT_BYTES + VALUE_OFFSET), ixAndCols[1], false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		ByteBuffer buffer = slots();
+		int bits = key.getBits();
+		int index = probing(buffer, mask, bits)[0];
+		return buffer.getInt(index * SLOT_BYTES) == bits ? buffer.getLong(index * SLOT_BYTES + VALUE_OFFSET) : 0L;
+	}
+
+	/**
+	 * Gets the Key at the specified index.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		int bits = slots().getInt(tableIndex * SLOT_BYTES);
+		if (bits == ColorHash.EMPTY_SLOT){
+			return null;
+		}
+		try {
+			return new ColorKey(bits, bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public long getValueAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		ByteBuffer buffer = slots();
+		if (buffer.getInt(tableIndex * SLOT_BYTES) == ColorHash.EMPTY_SLOT){
+			return -1L;
+		}
+		return buffer.getLong(tableIndex * SLOT_BYTES + VALUE_OFFSET);
+	}
+
+	/**
+	 * Frees the native memory of the table. Calling it again does nothing.
+	 */
+	public void close(){
+		if (slots != null){
+			free(slots);
+			slots = null;
+		}
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / (slots().capacity() / SLOT_BYTES); }
+
+	/**
+	 * Gets the current size of the table. Since resizing can happen this is not a constant.
+	 * @return Returns the current size of the table, including empty spots.
+	 * @throws IllegalStateException If the table has been closed
+	 */
+	public int getTableSize(){ return slots().capacity() / SLOT_BYTES; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
@@ -0,0 +1,46 @@
+/**
+ * ProbeStats adds up what happened over many table operations, as a reusable alternative to
+ * creating a ResponseItem for every one of them.
+ * <p>
+ * Pass the same ProbeStats to every call of a counting loop (for example ColorHash.incrementBits)
+ * and read the totals at the end. Like ResponseItem, the data members are public so they can be
+ * read without getters.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class ProbeStats {
+	public long nOperations;    // the number of operations recorded
+	public long nCollisions;    // the total number of collisions over all of them
+	public int maxCollisions;   // the most collisions met by any one operation
+	public int nRehashes;       // the number of operations that caused a rehash
+	public long nUpdates;       // the number of operations that found their key already in the table
+
+	/**
+	 * Adds one operation to the totals.
+	 * @param collisions The number of collisions of the operation.
+	 * @param didRehash True if the operation caused a rehash.
+	 * @param didUpdate True if the key was already in the table.
+	 */
+	public void record(int collisions, boolean didRehash, boolean didUpdate) {
+		nOperations++;
+		nCollisions += collisions;
+		if (collisions > maxCollisions) { maxCollisions = collisions; }
+		if (didRehash) { nRehashes++; }
+		if (didUpdate) { nUpdates++; }
+	}
+
+	/**
+	 * Clears the totals so the object can be reused.
+	 */
+	public void reset() {
+		nOperations = 0;
+		nCollisions = 0;
+		maxCollisions = 0;
+		nRehashes = 0;
+		nUpdates = 0;
+	}
+
+	public String toString() {
+		return "ProbeStats[nOperations:"+nOperations+", nCollisions:"+nCollisions+", maxCollisions:"+maxCollisions
+				+", nRehashes:"+nRehashes+", nUpdates:"+nUpdates+"]";
+	}
+}
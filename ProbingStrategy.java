@@ -0,0 +1,215 @@
+/**
+ * ProbingStrategy is the probe sequence a ColorHash follows after a collision.
+ * <p>
+ * Each collision resolution method is its own final class, chosen once by forMethod when the table
+ * is built, so the probing loop calls one small method of one class instead of comparing method
+ * names at every step, and the JIT can inline it.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public interface ProbingStrategy {
+
+	/**
+	 * Gets the strategy for a collision resolution method.
+	 * @param collisionResolutionMethod One of ColorHash.LINEAR_PROBING, QUAD_PROBING, ROBIN_HOOD or DOUBLE_HASHING.
+	 * @param powerOfTwoSizing True if the table sizes are powers of two, false if they are primes.
+	 * @return Returns the strategy.
+	 * @throws IllegalArgumentException If the method is not one of the four
+	 */
+	static ProbingStrategy forMethod(String collisionResolutionMethod, boolean powerOfTwoSizing){
+		if (collisionResolutionMethod.equals(ColorHash.LINEAR_PROBING)){
+			return new LinearProbing();
+		} else if (collisionResolutionMethod.equals(ColorHash.QUAD_PROBING)){
+			return powerOfTwoSizing ? new TriangularProbing() : new QuadraticProbing();
+		} else if (collisionResolutionMethod.equals(ColorHash.ROBIN_HOOD)){
+			return new RobinHoodProbing();
+		} else if (collisionResolutionMethod.equals(ColorHash.DOUBLE_HASHING)){
+			return new DoubleHashing(powerOfTwoSizing);
+		}
+		throw new IllegalArgumentException("Only supports 'Linear Probing', 'Quadratic Probing', 'Robin Hood Hashing' "
+				+ "or 'Double Hashing'.");
+	}
+
+	/**
+	 * Gets the step a key takes between probes, for strategies whose step depends on the key.
+	 * @param bits The packed bits of the key.
+	 * @param tableLength The size of the table being probed.
+	 * @return Returns the step passed to nextProbe for this key.
+	 */
+	int stepSize(int bits, int tableLength);
+
+	/**
+	 * Gets the next slot of a probe sequence after a collision.
+	 * @param hashIndex The slot that collided.
+	 * @param homeIndex The first slot of the sequence.
+	 * @param stepSize The step returned by stepSize for the key.
+	 * @param nCollisions The number of collisions so far, including this one.
+	 * @param tableLength The size of the table being probed.
+	 * @return Returns the slot to probe next.
+	 */
+	int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength);
+
+	/**
+	 * Tells whether a search ends at the first entry closer to its home slot than the key would be (Robin Hood).
+	 * @return Returns true if entries are kept ordered by probe distance.
+	 */
+	boolean stopsAtRicherEntry();
+
+	/**
+	 * Tells whether removing a key leaves a tombstone. Otherwise the run is closed up by backward shifting,
+	 * which only works for sequences that step one slot at a time.
+	 * @return Returns true if remove leaves tombstones.
+	 */
+	boolean leavesTombstones();
+
+	/**
+	 * Checks a rehash load factor for this strategy.
+	 * @param rehashLoadFactor The load factor.
+	 * @throws ColorHash.InvalidLoadFactorException If the strategy cannot work at that load factor
+	 */
+	void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException;
+
+	/**
+	 * Linear probing: try the next slot, wrapping around.
+	 */
+	final class LinearProbing implements ProbingStrategy {
+		public int stepSize(int bits, int tableLength){ return 1; }
+
+		public int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength){
+			hashIndex++;
+			if (hashIndex == tableLength){hashIndex = 0;} // Wrap around array if needed
+			return hashIndex;
+		}
+
+		public boolean stopsAtRicherEntry(){ return false; }
+
+		public boolean leavesTombstones(){ return false; }
+
+		public void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException {
+			if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+				throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Linear Probing");
+			}
+		}
+	}
+
+	/**
+	 * Robin Hood hashing: linear probing that keeps each run ordered by distance from home.
+	 */
+	final class RobinHoodProbing implements ProbingStrategy {
+		public int stepSize(int bits, int tableLength){ return 1; }
+
+		public int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength){
+			hashIndex++;
+			if (hashIndex == tableLength){hashIndex = 0;} // Wrap around array if needed
+			return hashIndex;
+		}
+
+		public boolean stopsAtRicherEntry(){ return true; }
+
+		public boolean leavesTombstones(){ return false; }
+
+		public void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException {
+			if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+				throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Robin Hood Hashing");
+			}
+		}
+	}
+
+	/**
+	 * Quadratic probing for prime table sizes: home + 1, home + 4, home + 9, ...
+	 * Below a load factor of 0.5 it always finds an empty slot.
+	 */
+	final class QuadraticProbing implements ProbingStrategy {
+		public int stepSize(int bits, int tableLength){ return 1; }
+
+		public int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength){
+			hashIndex = nCollisions * nCollisions + homeIndex;
+			while(hashIndex >= tableLength){
+				hashIndex -= tableLength;
+			}
+			return hashIndex;
+		}
+
+		public boolean stopsAtRicherEntry(){ return false; }
+
+		public boolean leavesTombstones(){ return true; }
+
+		public void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException {
+			if (rehashLoadFactor >= .5 || rehashLoadFactor <= 0){
+				throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Quadratic Probing");
+			}
+		}
+	}
+
+	/**
+	 * Quadratic probing for power-of-two table sizes: home + 1, home + 3, home + 6, ... (triangular numbers),
+	 * which visits every slot.
+	 */
+	final class TriangularProbing implements ProbingStrategy {
+		public int stepSize(int bits, int tableLength){ return 1; }
+
+		public int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength){
+			return (hashIndex + nCollisions) & (tableLength - 1); // home + 1 + 2 + ... + nCollisions
+		}
+
+		public boolean stopsAtRicherEntry(){ return false; }
+
+		public boolean leavesTombstones(){ return true; }
+
+		public void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException {
+			if (rehashLoadFactor >= .5 || rehashLoadFactor <= 0){
+				throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Quadratic Probing");
+			}
+		}
+	}
+
+	/**
+	 * Double hashing: step by an amount taken from a second hash of the key, so keys sharing a home slot
+	 * still follow different probe sequences.
+	 */
+	final class DoubleHashing implements ProbingStrategy {
+		private final boolean powerOfTwoSizing;
+
+		/**
+		 * Constructs a DoubleHashing strategy.
+		 * @param powerOfTwoSizing True if the table sizes are powers of two, false if they are primes.
+		 */
+		public DoubleHashing(boolean powerOfTwoSizing){
+			this.powerOfTwoSizing = powerOfTwoSizing;
+		}
+
+		/**
+		 * Computes the double hashing probe step for a key.
+		 * The step comes from a multiplicative (Fibonacci) hash of the key bits, which is independent of the home
+		 * slot. It is always in [1, table size - 1] and coprime to the table size: any such step works for a prime
+		 * size, and for a power-of-two size the step is made odd. Either way the probe sequence visits every slot
+		 * before repeating.
+		 *
+		 * @param bits The packed bits of the key.
+		 * @param tableLength The (prime or power-of-two) size of the table being probed.
+		 * @return Returns the distance between consecutive probes for this key.
+		 */
+		public int stepSize(int bits, int tableLength){
+			int secondaryHash = (bits * 0x9E3779B9) >>> 1; // Golden ratio multiplier, kept non-negative
+			if (powerOfTwoSizing){
+				return (secondaryHash & (tableLength - 1)) | 1;
+			}
+			return 1 + secondaryHash % (tableLength - 1);
+		}
+
+		public int nextProbe(int hashIndex, int homeIndex, int stepSize, int nCollisions, int tableLength){
+			hashIndex += stepSize;
+			if (hashIndex >= tableLength){hashIndex -= tableLength;} // Wrap around array if needed
+			return hashIndex;
+		}
+
+		public boolean stopsAtRicherEntry(){ return false; }
+
+		public boolean leavesTombstones(){ return true; }
+
+		public void checkLoadFactor(double rehashLoadFactor) throws ColorHash.InvalidLoadFactorException {
+			if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+				throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Double Hashing");
+			}
+		}
+	}
+}
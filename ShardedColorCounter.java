@@ -0,0 +1,64 @@
+/**
+ * ShardedColorCounter counts colors with several worker threads that never share a table.
+ * <p>
+ * Worker i counts into its own private ColorHash, getShard(i), with the plain unsynchronized
+ * increment, so the hot path has no atomics and no contention. When every worker is done, merge()
+ * sums the shards into one ColorHash with ColorHash.merge, which walks their arrays directly.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class ShardedColorCounter {
+
+	// Members
+	private ColorHash[] shards;     // One table per worker
+	private int bpp;                // bitsPerPixel
+
+	/**
+	 * Constructs a ShardedColorCounter with one empty ColorHash per worker.
+	 *
+	 * @param nShards The number of workers.
+	 * @param tableSize The initial size of each shard.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param collisionResolutionMethod The type of probing every shard uses upon collisions.
+	 * @param rehashLoadFactor The rehash load factor of every shard.
+	 * @throws Exception If the resolution method or load factor is invalid
+	 */
+	public ShardedColorCounter(int nShards, int tableSize, int bitsPerPixel, String collisionResolutionMethod,
+			double rehashLoadFactor) throws Exception {
+		if (nShards < 1){
+			throw new IllegalArgumentException("Need at least one shard");
+		}
+		bpp    = bitsPerPixel;
+		shards = new ColorHash[nShards];
+		for (int i = 0; i < nShards; i++){
+			shards[i] = new ColorHash(tableSize, bitsPerPixel, collisionResolutionMethod, rehashLoadFactor);
+		}
+	}
+
+	/**
+	 * Gets the private table of a worker. Only that worker may use it until merge() is called.
+	 * @param worker The worker index, from 0 to getShardCount() - 1.
+	 * @return Returns the worker's ColorHash.
+	 */
+	public ColorHash getShard(int worker){ return shards[worker]; }
+
+	/**
+	 * Gets the number of shards.
+	 * @return Returns the number of workers this counter was built for.
+	 */
+	public int getShardCount(){ return shards.length; }
+
+	/**
+	 * Sums every shard into one table. Call it after all workers have finished.
+	 * @return Returns a new ColorHash holding the total counts.
+	 * @throws Exception If the shards cannot be merged
+	 */
+	public ColorHash merge() throws Exception {
+		return ColorHash.merge(shards);
+	}
+
+	/**
+	 * Gets the bits per pixel value for this counter
+	 * @return Bits per pixel of the shards
+	 */
+	public int getBPP(){ return bpp; }
+}
@@ -0,0 +1,280 @@
+/**
+ * SpaceSavingColorCounter finds the most frequent colors of a stream of pixels while keeping
+ * counts for only capacity of them (the Space-Saving algorithm of Metwally, Agrawal and El Abbadi).
+ * <p>
+ * A color that is already monitored has its count incremented. A new color, once every entry is
+ * taken, replaces the monitored color with the smallest count and inherits that count plus one,
+ * which is remembered as its error. With N the total count this guarantees:
+ * <ul>
+ * <li>count - error &lt;= true count &lt;= count for every monitored color;</li>
+ * <li>error &lt;= getThreshold() &lt;= N / capacity;</li>
+ * <li>every color with a true count above getThreshold() is monitored, so is in getTopColors.</li>
+ * </ul>
+ * Entries sit in a min-heap on their counts, so replacing the smallest is O(log capacity), and a
+ * small open addressing index finds the entry of a color. Memory is O(capacity) no matter how many
+ * colors the image has.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class SpaceSavingColorCounter {
+
+	// Members
+	private int[] keys;            // The color of each entry
+	private long[] counts;         // The count of each entry, an upper bound of its true count
+	private long[] errors;         // How much of each count may belong to the colors the entry replaced
+	private int[] heap;            // Entry ids, a min-heap on counts
+	private int[] heapPosition;    // Where each entry id sits in heap
+	private int size;              // Entries in use
+	private int[] indexKeys;       // Open addressing index from color to entry id, EMPTY_SLOT where unused
+	private int[] indexIds;        // The entry id paired with indexKeys
+	private int indexMask;         // indexKeys.length - 1
+	private long totalCount;       // Sum of all increments
+	private int bpp;               // bitsPerPixel
+
+	/**
+	 * Constructs a SpaceSavingColorCounter object.
+	 * @param capacity The number of colors to monitor, at least the number of top colors wanted. More
+	 * entries give smaller errors.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @throws IllegalArgumentException If capacity is not positive
+	 */
+	public SpaceSavingColorCounter(int capacity, int bitsPerPixel){
+		if (capacity < 1){
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		keys         = new int[capacity];
+		counts       = new long[capacity];
+		errors       = new long[capacity];
+		heap         = new int[capacity];
+		heapPosition = new int[capacity];
+		int indexSize = Integer.highestOneBit(capacity) << 2; // At most half full
+		indexKeys    = new int[indexSize];
+		indexIds     = new int[indexSize];
+		indexMask    = indexSize - 1;
+		java.util.Arrays.fill(indexKeys, ColorHash.EMPTY_SLOT);
+		bpp          = bitsPerPixel;
+	}
+
+	/**
+	 * Finds the index slot of a color, or the empty slot where it belongs.
+	 * @param bits The packed bits of the color.
+	 * @return Returns the slot.
+	 */
+	private int findSlot(int bits){
+		int slot = ColorHash.mix(bits) & indexMask;
+		while (indexKeys[slot] != ColorHash.EMPTY_SLOT && indexKeys[slot] != bits){
+			slot = (slot + 1) & indexMask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Removes a color from the index, shifting later entries of its run back so none is left unreachable.
+	 * @param bits The packed bits of a color in the index.
+	 */
+	private void removeFromIndex(int bits){
+		int hole = findSlot(bits);
+		int next = hole;
+		while (true){
+			next = (next + 1) & indexMask;
+			int nextKey = indexKeys[next];
+			if (nextKey == ColorHash.EMPTY_SLOT){
+				break;
+			}
+			int home = ColorHash.mix(nextKey) & indexMask;
+			if (((next - home) & indexMask) >= ((next - hole) & indexMask)){ // The hole lies between home and next
+				indexKeys[hole] = nextKey;
+				indexIds[hole] = indexIds[next];
+				hole = next;
+			}
+		}
+		indexKeys[hole] = ColorHash.EMPTY_SLOT;
+	}
+
+	/**
+	 * Counts one more of a color.
+	 * @param bits The packed bits of the color.
+	 * @return Returns the count of the color after the increment.
+	 */
+	public long incrementBits(int bits){
+		totalCount++;
+		int slot = findSlot(bits);
+		int id;
+		if (indexKeys[slot] == bits){ // Already monitored
+			id = indexIds[slot];
+		} else if (size < keys.length){ // A free entry
+			id = size;
+			keys[id] = bits;
+			counts[id] = 1;
+			errors[id] = 0;
+			indexKeys[slot] = bits;
+			indexIds[slot] = id;
+			heap[size] = id;
+			size++;
+			siftUp(size - 1); // A count of 1 is never above any other
+			return 1L;
+		} else { // Replace the color with the smallest count
+			id = heap[0];
+			removeFromIndex(keys[id]);
+			keys[id] = bits;
+			errors[id] = counts[id];
+			slot = findSlot(bits);
+			indexKeys[slot] = bits;
+			indexIds[slot] = id;
+		}
+		counts[id]++;
+		siftDown(heapPosition[id]);
+		return counts[id];
+	}
+
+	/**
+	 * Counts one more of a color.
+	 * @param key The color to count.
+	 * @return Returns a ResponseItem with the count after the increment. didUpdate is true if the color was
+	 * already monitored.
+	 */
+	public ResponseItem increment(ColorKey key){
+		boolean monitored = isMonitored(key.getBits());
+		return new ResponseItem(incrementBits(key.getBits()), 0, false, monitored);
+	}
+
+	/**
+	 * Counts a run of colors, such as a column from ImageLoader.getColorBitsColumn.
+	 * @param colors The packed bits of the colors.
+	 * @param offset The index of the first color.
+	 * @param length The number of colors.
+	 */
+	public void incrementAll(int[] colors, int offset, int length){
+		for (int i = offset; i < offset + length; i++){
+			incrementBits(colors[i]);
+		}
+	}
+
+	/**
+	 * Moves a new entry up the heap until its count is no smaller than its parent's.
+	 * @param position The heap position of the entry.
+	 */
+	private void siftUp(int position){
+		int id = heap[position];
+		while (position > 0){
+			int parent = (position - 1) / 2;
+			if (counts[heap[parent]] <= counts[id]){
+				break;
+			}
+			heap[position] = heap[parent];
+			heapPosition[heap[position]] = position;
+			position = parent;
+		}
+		heap[position] = id;
+		heapPosition[id] = position;
+	}
+
+	/**
+	 * Moves an entry down the heap until its count is no bigger than its children's.
+	 * Counts only grow, so an entry already in the heap never needs to move up.
+	 * @param position The heap position of the entry.
+	 */
+	private void siftDown(int position){
+		int id = heap[position];
+		while (true){
+			int child = 2 * position + 1;
+			if (child >= size){
+				break;
+			}
+			if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]){
+				child++;
+			}
+			if (counts[heap[child]] >= counts[id]){
+				break;
+			}
+			heap[position] = heap[child];
+			heapPosition[heap[position]] = position;
+			position = child;
+		}
+		heap[position] = id;
+		heapPosition[id] = position;
+	}
+
+	/**
+	 * Tells whether a color has an entry.
+	 * @param bits The packed bits of the color.
+	 * @return Returns true if the color is monitored.
+	 */
+	public boolean isMonitored(int bits){
+		return indexKeys[findSlot(bits)] == bits;
+	}
+
+	/**
+	 * Gets the count of a monitored color, which is at least its true count.
+	 * @param bits The packed bits of the color.
+	 * @return Returns the count, or 0 if the color is not monitored (its true count is then at most getThreshold()).
+	 */
+	public long getCountBits(int bits){
+		int slot = findSlot(bits);
+		return indexKeys[slot] == bits ? counts[indexIds[slot]] : 0L;
+	}
+
+	/**
+	 * Gets the count of a monitored color, which is at least its true count.
+	 * @param key The color to look for.
+	 * @return Returns the count, or 0 if the color is not monitored.
+	 */
+	public long getCount(ColorKey key){
+		return getCountBits(key.getBits());
+	}
+
+	/**
+	 * Gets how much the count of a monitored color may exceed its true count.
+	 * @param bits The packed bits of the color.
+	 * @return Returns the error, or 0 if the color is not monitored.
+	 */
+	public long getErrorBits(int bits){
+		int slot = findSlot(bits);
+		return indexKeys[slot] == bits ? errors[indexIds[slot]] : 0L;
+	}
+
+	/**
+	 * Gets the largest true count a color without an entry can have: the smallest count, once every entry is in use.
+	 * @return Returns the threshold, which is at most getTotalCount() / capacity.
+	 */
+	public long getThreshold(){
+		return size < keys.length ? 0L : counts[heap[0]];
+	}
+
+	/**
+	 * Gets the most frequent colors, by count.
+	 * They are certainly the true top k if, for each of them, count minus error is at least the count of the
+	 * color ranked k + 1 and at least getThreshold().
+	 * @param k The number of colors wanted.
+	 * @return Returns the packed bits of up to k colors, largest count first.
+	 */
+	public int[] getTopColors(int k){
+		Integer[] ids = new Integer[size];
+		for (int i = 0; i < size; i++){
+			ids[i] = i;
+		}
+		java.util.Arrays.sort(ids, (a, b) -> Long.compare(counts[b], counts[a]));
+		int[] top = new int[Math.min(k, size)];
+		for (int i = 0; i < top.length; i++){
+			top[i] = keys[ids[i]];
+		}
+		return top;
+	}
+
+	/**
+	 * Gets the sum of all increments.
+	 * @return Returns the total count.
+	 */
+	public long getTotalCount(){ return totalCount; }
+
+	/**
+	 * Gets the number of colors that can be monitored.
+	 * @return Returns the capacity.
+	 */
+	public int getCapacity(){ return keys.length; }
+
+	/**
+	 * Gets the bits per pixel value for this counter
+	 * @return Bits per pixel of the counter
+	 */
+	public int getBPP(){ return bpp; }
+}
@@ -0,0 +1,286 @@
+/**
+ * SwissColorHash is a ColorTable laid out like a SwissTable: slots come in groups of GROUP_SIZE,
+ * and besides the key and value arrays there is one control byte per slot.
+ * <p>
+ * A control byte is either EMPTY (high bit set) or the low 7 bits of the key's hash. The 8 control
+ * bytes of a group are packed into one long, so a probe compares a whole group against the key's
+ * 7-bit tag with a few SWAR (SIMD within a register) operations and only reads the key array for
+ * the rare slots whose tag matches. Probing moves between whole groups in triangular steps, which
+ * visits every group of the power-of-two table.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class SwissColorHash implements ColorTable {
+
+	// Constants
+	static final int GROUP_SIZE = 8;                              // Slots per group, one control byte each
+	private static final long EMPTY = 0x80L;                      // Control byte of an empty slot
+	private static final long LOW_BITS = 0x0101010101010101L;     // 0x01 in every byte
+	private static final long HIGH_BITS = 0x8080808080808080L;    // 0x80 in every byte
+
+	// Members
+	private long[] controlGroups;   // GROUP_SIZE control bytes per group, slot 0 in the lowest byte
+	private int[] keyTable;         // Packed ColorKey bits of every slot
+	private long[] valueTable;      // The count/value paired with keyTable at the same index
+	private int groupMask;          // Number of groups - 1; the number of groups is a power of two
+	private int currentSize;        // Number of elements currently in the table
+	private int bpp;                // bitsPerPixel
+	private double rhLoadFactor;    // The rehash load factor
+	private int rehashCollisions;   // Collisions met while rehashing
+	private int lastCollisions;     // Collisions met by the most recent findIndex
+
+	/**
+	 * Constructs a SwissColorHash object.
+	 *
+	 * @param tableSize The initial number of slots, rounded up to a power of two groups.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param rehashLoadFactor The threshold that determines when to grow the table (# elements / table size)
+	 * @throws Exception If the load factor is invalid
+	 */
+	public SwissColorHash(int tableSize, int bitsPerPixel, double rehashLoadFactor) throws Exception {
+		if (rehashLoadFactor >= 1 || rehashLoadFactor <= 0){
+			throw new ColorHash.InvalidLoadFactorException("Invalid Load Factor for Swiss Table Hashing");
+		}
+		rhLoadFactor = rehashLoadFactor;
+		bpp          = bitsPerPixel;
+		currentSize  = 0;
+		int groups = (tableSize + GROUP_SIZE - 1) / GROUP_SIZE;
+		allocate(Math.max(1, Integer.highestOneBit(Math.max(groups - 1, 1)) << 1));
+	}
+
+	/**
+	 * Allocates empty tables with the given number of groups.
+	 * @param groups The number of groups, a power of two.
+	 */
+	private void allocate(int groups){
+		controlGroups = new long[groups];
+		java.util.Arrays.fill(controlGroups, HIGH_BITS); // Every control byte EMPTY
+		keyTable      = new int[groups * GROUP_SIZE];
+		valueTable    = new long[groups * GROUP_SIZE];
+		groupMask     = groups - 1;
+	}
+
+	/**
+	 * Finds the bytes of a control group equal to a tag.
+	 * May also flag a byte just above a true match, so callers still compare keys.
+	 * @param group Eight packed control bytes.
+	 * @param tag A 7-bit hash tag.
+	 * @return Returns a mask with the high bit of every matching byte set.
+	 */
+	private static long matchTag(long group, int tag){
+		long x = group ^ (LOW_BITS * tag); // Matching bytes become zero
+		return (x - LOW_BITS) & ~x & HIGH_BITS;
+	}
+
+	/**
+	 * Finds the empty bytes of a control group.
+	 * @param group Eight packed control bytes.
+	 * @return Returns a mask with the high bit of every empty byte set.
+	 */
+	private static long matchEmpty(long group){
+		return group & HIGH_BITS;
+	}
+
+	/**
+	 * Finds where a key is stored. Collisions (tag matches with a different key, and extra groups
+	 * probed) are saved into lastCollisions.
+	 * @param bits The packed bits of the key.
+	 * @return Returns the slot index of the key, or -1 if it is absent.
+	 */
+	private int findIndex(int bits){
+		lastCollisions = 0;
+		int hash = ColorHash.mix(bits); // The low 7 bits are the control tag, the rest pick the first group
+		int tag = hash & 0x7F;
+		int group = (hash >>> 7) & groupMask;
+		for (int step = 1; ; step++){
+			long control = controlGroups[group];
+			long matches = matchTag(control, tag);
+			while (matches != 0){
+				int index = group * GROUP_SIZE + (Long.numberOfTrailingZeros(matches) >>> 3);
+				if (keyTable[index] == bits){ return index; }
+				lastCollisions++;
+				matches &= matches - 1; // Clear the lowest set bit
+			}
+			if (matchEmpty(control) != 0){ return -1; } // An empty slot ends the probe sequence
+			lastCollisions++;
+			group = (group + step) & groupMask;  // Triangular steps visit every group
+		}
+	}
+
+	/**
+	 * Stores a key that is not in the table in the first empty slot of its probe sequence.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @return Returns the number of full groups passed over.
+	 */
+	private int place(int bits, long value){
+		int hash = ColorHash.mix(bits);
+		int group = (hash >>> 7) & groupMask;
+		int nCollisions = 0;
+		long empties = matchEmpty(controlGroups[group]);
+		for (int step = 1; empties == 0; step++){
+			nCollisions++;
+			group = (group + step) & groupMask;
+			empties = matchEmpty(controlGroups[group]);
+		}
+		int slot = Long.numberOfTrailingZeros(empties) >>> 3;
+		long shift = 8L * slot;
+		controlGroups[group] = (controlGroups[group] & ~(0xFFL << shift)) | ((long) (hash & 0x7F) << shift);
+		keyTable[group * GROUP_SIZE + slot] = bits;
+		valueTable[group * GROUP_SIZE + slot] = value;
+		return nCollisions;
+	}
+
+	/**
+	 * Inserts a key known to be absent, growing first if needed.
+	 * @param bits The packed bits of the key.
+	 * @param value The value associated with the key.
+	 * @param nCollisions Collisions already met by the failed lookup.
+	 * @return Returns a ResponseItem describing the insert.
+	 */
+	private ResponseItem insert(int bits, long value, int nCollisions){
+		boolean didRehash = false;
+		if (getLoadFactor() >= rhLoadFactor){
+			resize();
+			nCollisions += rehashCollisions;
+			didRehash = true;
+		}
+		nCollisions += place(bits, value);
+		currentSize++;
+		return new ResponseItem(value, nCollisions, didRehash, false);
+	}
+
+	/**
+	 * Doubles the number of groups and reinserts every entry.
+	 * Collisions met along the way are saved into rehashCollisions.
+	 */
+	private void resize(){
+		long[] oldControl = controlGroups;
+		int[] oldKeys = keyTable;
+		long[] oldValues = valueTable;
+		allocate(controlGroups.length * 2);
+		rehashCollisions = 0;
+		for (int i = 0; i < oldKeys.length; i++){
+			if (!isEmpty(oldControl, i)){
+				rehashCollisions += place(oldKeys[i], oldValues[i]);
+			}
+		}
+	}
+
+	/**
+	 * Checks the control byte of one slot.
+	 * @param control The control groups to read.
+	 * @param tableIndex The slot index.
+	 * @return Returns true if the slot is empty.
+	 */
+	private static boolean isEmpty(long[] control, int tableIndex){
+		long controlByte = control[tableIndex / GROUP_SIZE] >>> (8 * (tableIndex % GROUP_SIZE));
+		return (controlByte & EMPTY) != 0;
+	}
+
+	/**
+	 * Inserts key into the table with associated value
+	 * If entry already exists for key, overwrite the value
+	 * @param key The key to insert/update.
+	 * @param value The value associated with the key
+	 * @return Returns a ResponseItem that contains information about the task.
+	 */
+	public ResponseItem colorHashPut(ColorKey key, long value){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, value, lastCollisions);
+		}
+		valueTable[index] = value;
+		return new ResponseItem(value, lastCollisions, false, true);
+	}
+
+	/**
+	 * Increment value of a key if it already exists. If it doesn't exist insert it and store a value 1 with it.
+	 * @param key The key to increment or insert.
+	 * @return Return a ResponseItem with the relevant procedural info.
+	 */
+	public ResponseItem increment(ColorKey key){
+		int bits = key.getBits();
+		int index = findIndex(bits);
+		if (index < 0){
+			return insert(bits, 1L, lastCollisions);
+		}
+		long value = valueTable[index] += 1;
+		return new ResponseItem(value, lastCollisions, false, true);
+	}
+
+	/**
+	 * Look up a specified key and return the value in a ResponseItem format.
+	 * @param key The key to look up.
+	 * @return Returns a ResponseItem that contains the associated value.
+	 * @throws ColorHash.MissingColorKeyException If the key does not exist
+	 */
+	public ResponseItem colorHashGet(ColorKey key) throws Exception {
+		int index = findIndex(key.getBits());
+		if (index < 0){
+			throw new ColorHash.MissingColorKeyException("Key not found");
+		}
+		return new ResponseItem(valueTable[index], lastCollisions, false, false);
+	}
+
+	/**
+	 * Looks for a specified key in the table and returns its associated value.
+	 * @param key The key to look for.
+	 * @return Returns the value associated with the key, if none is found return 0.
+	 */
+	public long getCount(ColorKey key){
+		int index = findIndex(key.getBits());
+		return index < 0 ? 0L : valueTable[index];
+	}
+
+	/**
+	 * Gets the Key at the specified index.
+	 * @param tableIndex The index of the table.
+	 * @return Returns a key in the table, or null if the slot is empty.
+	 * @throws IndexOutOfBoundsException If index is not in the table.
+	 */
+	public ColorKey getKeyAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		if (isEmpty(controlGroups, tableIndex)){
+			return null;
+		}
+		try {
+			return new ColorKey(keyTable[tableIndex], bpp);
+		} catch (Exception e){
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the value stored at the index location.
+	 * @param tableIndex The index of the table value to return.
+	 * @return Returns the value specified by the index, or -1 if the slot is empty.
+	 */
+	public long getValueAt(int tableIndex){
+		if (tableIndex >= getTableSize() || tableIndex < 0){
+			throw new IndexOutOfBoundsException();
+		}
+		return isEmpty(controlGroups, tableIndex) ? -1L : valueTable[tableIndex];
+	}
+
+	/**
+	 * Updated with one more than current size
+	 * Gets the current value of the table load factor.
+	 * @return Returns the current load factor.
+	 */
+	public double getLoadFactor(){ return (currentSize + 1.0) / keyTable.length; }
+
+	/**
+	 * Gets the current size of the table. Since resizing can happen this is not a constant.
+	 * @return Returns the current size of the table, including empty spots.
+	 */
+	public int getTableSize(){ return keyTable.length; }
+
+	/**
+	 * Gets the bits per pixel value for this table
+	 * @return Bits per pixel of the table
+	 */
+	public int getBPP(){ return bpp; }
+}
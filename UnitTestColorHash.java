@@ -220,4 +220,1136 @@ public class UnitTestColorHash {
     	assertEquals(false, ri.didUpdate);
 
 	}
+	@Test
+	public void testRobinHoodDisplacement() {
+		makeCollidingKeys(); // blackKey1..4 all have home slot 0 when tableSize=13
+		try {
+			testHT = new ColorHash(13, 6, "Robin Hood Hashing", 0.9);
+		} catch (Exception e) {}
+		testHT.colorHashPut(blackKey1, 1L); // slot 0
+		testHT.colorHashPut(blackKey2, 2L); // slot 1
+		testHT.colorHashPut(blackKey3, 3L); // slot 2
+		ColorKey homeOneKey = null;
+		try {
+			homeOneKey = new ColorKey(1, 15);
+		} catch (Exception e) {}
+		ResponseItem ri = testHT.colorHashPut(homeOneKey, 100L); // slot 3, two away from home
+		assertEquals(2, ri.nCollisions);
+		assertEquals(100L, testHT.getValueAt(3));
+
+		// blackKey4 is three away from home at slot 3, so it takes the slot and pushes homeOneKey to slot 4.
+		ri = testHT.colorHashPut(blackKey4, 4L);
+		assertEquals(4, ri.nCollisions);
+		assertEquals(4L, testHT.getValueAt(3));
+		assertEquals(100L, testHT.getValueAt(4));
+		assertEquals(100L, testHT.getCount(homeOneKey));
+		assertEquals(0L, testHT.getCount(blackKey5)); // miss stops at slot 4 instead of scanning to an empty slot
+	}
+	@Test
+	public void testCuckooLookupsAreBounded() throws Exception {
+		CuckooColorHash cuckoo = new CuckooColorHash(3, 15, 0.45);
+		for (int bits = 0; bits < 5000; bits++) {
+			ColorKey key = new ColorKey(bits * 7, 15);
+			cuckoo.increment(key);
+			cuckoo.increment(key);
+		}
+		for (int bits = 0; bits < 5000; bits++) {
+			ResponseItem ri = cuckoo.colorHashGet(new ColorKey(bits * 7, 15));
+			assertEquals(2L, ri.value);
+			assertEquals(true, ri.nCollisions <= 1 + CuckooColorHash.STASH_SIZE); // two slots, then the stash
+		}
+		assertEquals(0L, cuckoo.getCount(new ColorKey(1, 15)));
+	}
+	@Test
+	public void testIncrementalResize() throws Exception {
+		testHT = new ColorHash(101, 15, "Linear Probing", 0.5);
+		testHT.setIncrementalResize(true);
+		ResponseItem ri = null;
+		int bits = 0;
+		do { // Fill the table until an insert starts a resize
+			ri = testHT.increment(new ColorKey(bits++, 15));
+		} while (!ri.didRehash);
+		assertEquals(0, ri.nCollisions); // The resize only allocated; nothing was reinserted yet
+
+		// Every key is still found while most of them sit in the old table
+		for (int i = 0; i < bits; i++) {
+			assertEquals(1L, testHT.getCount(new ColorKey(i, 15)));
+			assertEquals(2L, testHT.increment(new ColorKey(i, 15)).value);
+		}
+		assertEquals(211, testHT.getTableSize());
+		assertEquals(2L, testHT.getValueAt(0));
+	}
+	@Test
+	public void testMergeShards() throws Exception {
+		ColorHash shard1 = new ColorHash(7, 15, "Linear Probing", 0.5);
+		ColorHash shard2 = new ColorHash(7, 15, "Linear Probing", 0.5);
+		for (int bits = 0; bits < 100; bits++) {
+			shard1.increment(new ColorKey(bits, 15));  // keys 0 to 99 once
+			shard2.colorHashPut(new ColorKey(bits + 50, 15), 3L); // keys 50 to 149 three times
+		}
+		ColorHash merged = ColorHash.merge(shard1, shard2);
+		assertEquals(1L, merged.getCount(new ColorKey(10, 15)));
+		assertEquals(4L, merged.getCount(new ColorKey(60, 15)));
+		assertEquals(3L, merged.getCount(new ColorKey(120, 15)));
+		assertEquals(1L, shard1.getCount(new ColorKey(60, 15))); // shards are not changed
+
+		shard1.mergeFrom(shard2);
+		assertEquals(4L, shard1.getCount(new ColorKey(99, 15)));
+		assertEquals(3L, shard1.getCount(new ColorKey(149, 15)));
+	}
+	@Test
+	public void testIncrementBitsWithProbeStats() throws Exception {
+		testHT = new ColorHash(7, 6, "Linear Probing", 0.5);
+		ProbeStats stats = new ProbeStats();
+		int red = ColorKey.pack(255, 0, 0, 6);
+		assertEquals(new ColorKey(255, 0, 0, 6).getBits(), red);
+		assertEquals(1L, testHT.incrementBits(red, stats));
+		assertEquals(2L, testHT.incrementBits(red, stats));
+		for (int bits = 0; bits < 4; bits++) {
+			testHT.incrementBits(bits, stats);
+		}
+		assertEquals(6L, stats.nOperations);
+		assertEquals(1L, stats.nUpdates);
+		assertEquals(1, stats.nRehashes); // the 4th distinct key crosses 0.5 of 7 slots
+		assertEquals(2L, testHT.getCount(new ColorKey(255, 0, 0, 6)));
+	}
+	@Test
+	public void testRemoveAndDecrement() throws Exception {
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.9);
+		testHT.increment(new ColorKey(0, 15));
+		testHT.increment(new ColorKey(7, 15));
+		testHT.colorHashPut(new ColorKey(14, 15), 5L); // all three share home slot 0
+		assertEquals(1L, testHT.remove(new ColorKey(0, 15)));
+		// Backward shift: the rest of the run moves up and no gap is left behind
+		assertEquals(new ColorKey(7, 15), testHT.getKeyAt(0));
+		assertEquals(new ColorKey(14, 15), testHT.getKeyAt(1));
+		assertEquals(null, testHT.getKeyAt(2));
+		assertEquals(0L, testHT.remove(new ColorKey(0, 15)));
+
+		assertEquals(4L, testHT.decrement(new ColorKey(14, 15)).value);
+		ResponseItem ri = testHT.decrement(new ColorKey(7, 15));
+		assertEquals(0L, ri.value);
+		assertEquals(true, ri.didUpdate);
+		assertEquals(0L, testHT.getCount(new ColorKey(7, 15)));
+		assertEquals(new ColorKey(14, 15), testHT.getKeyAt(0));
+
+		testHT = new ColorHash(7, 15, "Quadratic Probing", 0.49);
+		testHT.increment(new ColorKey(0, 15));
+		testHT.increment(new ColorKey(7, 15)); // probes to slot 1
+		testHT.remove(new ColorKey(0, 15));
+		assertEquals(null, testHT.getKeyAt(0)); // a tombstone
+		assertEquals(1L, testHT.getCount(new ColorKey(7, 15)));
+		assertEquals(2, testHT.increment(new ColorKey(14, 15)).nCollisions); // past the tombstone and 7, then back
+		assertEquals(new ColorKey(14, 15), testHT.getKeyAt(0));
+	}
+	@Test
+	public void testTelemetry() throws Exception {
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.9);
+		testHT.setTelemetry(true);
+		testHT.increment(new ColorKey(0, 15));
+		testHT.increment(new ColorKey(7, 15));
+		testHT.increment(new ColorKey(14, 15)); // probe lengths 0, 1 and 2
+		testHT.getCount(new ColorKey(14, 15));
+		ColorHashTelemetry t = testHT.getTelemetry();
+		assertEquals(4L, t.nProbes);
+		assertEquals(1, t.p50ProbeLength);
+		assertEquals(2, t.p99ProbeLength);
+		assertEquals(2, t.maxProbeLength);
+		assertEquals(1, t.nClusters); // slots 0 to 2
+		assertEquals(3, t.maxClusterSize);
+		assertEquals(0, t.nResizes);
+		assertEquals(3.0 / 7, t.loadFactor, 1e-9);
+	}
+	@Test
+	public void testCountMinSketch() throws Exception {
+		CountMinColorSketch sketch = CountMinColorSketch.forError(15, 0.01, 0.01, true);
+		assertEquals(512, sketch.getWidth()); // e / 0.01 = 272, rounded up to a power of two
+		assertEquals(5, sketch.getDepth());
+		for (int bits = 0; bits < 1000; bits++) {
+			for (int n = 0; n <= bits % 3; n++) {
+				sketch.incrementBits(bits);
+			}
+		}
+		assertEquals(1999L, sketch.getTotalCount());
+		for (int bits = 0; bits < 1000; bits++) {
+			long estimate = sketch.getCountBits(bits);
+			assertEquals(true, estimate >= bits % 3 + 1); // never an undercount
+			assertEquals(true, estimate <= bits % 3 + 1 + sketch.getErrorBound());
+		}
+		assertEquals(true, sketch.increment(new ColorKey(2, 15)).value >= 4);
+	}
+	@Test
+	public void testSpaceSavingTopColors() {
+		SpaceSavingColorCounter counter = new SpaceSavingColorCounter(2, 6);
+		for (int bits : new int[] {5, 5, 5, 9, 12, 5}) {
+			counter.incrementBits(bits);
+		}
+		// 12 replaced 9, the smallest entry, and inherited its count of 1 as error
+		assertEquals(false, counter.isMonitored(9));
+		assertEquals(2L, counter.getCountBits(12));
+		assertEquals(1L, counter.getErrorBits(12));
+		assertEquals(4L, counter.getCountBits(5));
+		assertEquals(0L, counter.getErrorBits(5));
+		assertEquals(2L, counter.getThreshold());
+		int[] top = counter.getTopColors(5);
+		assertEquals(2, top.length);
+		assertEquals(5, top[0]);
+		assertEquals(12, top[1]);
+	}
+	@Test
+	public void testCapacityLimit() throws Exception {
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.5);
+		testHT.setCapacityLimit(2, ColorHash.OVERFLOW_BUCKET);
+		for (int bits : new int[] {1, 1, 2, 3, 3}) {
+			testHT.incrementBits(bits, null);
+		}
+		assertEquals(2L, testHT.getCount(new ColorKey(1, 15)));
+		assertEquals(0L, testHT.getCount(new ColorKey(3, 15))); // no room, so counted in the overflow bucket
+		assertEquals(2L, testHT.getOverflowCount());
+
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.5);
+		testHT.setCapacityLimit(2, ColorHash.EVICT_RAREST);
+		for (int bits : new int[] {1, 1, 2, 3}) {
+			testHT.incrementBits(bits, null);
+		}
+		assertEquals(2L, testHT.getCount(new ColorKey(1, 15)));
+		assertEquals(0L, testHT.getCount(new ColorKey(2, 15))); // evicted to make room for 3
+		assertEquals(1L, testHT.getCount(new ColorKey(3, 15)));
+		assertEquals(1L, testHT.getOverflowCount());
+	}
+	@Test
+	public void testSlidingWindow() throws Exception {
+		WindowedColorCounter window = new WindowedColorCounter(6, WindowedColorCounter.SLIDING_WINDOW, 2, 0);
+		window.addFrame(new int[] {1, 1, 2}, 0, 3);
+		window.addFrame(new int[] {2, 3}, 0, 2);
+		assertEquals(2L, window.getCount(new ColorKey(1, 6)));
+		assertEquals(2L, window.getCount(new ColorKey(2, 6)));
+		window.addFrame(new int[] {3}, 0, 1); // the first frame falls out of the window
+		assertEquals(0L, window.getCount(new ColorKey(1, 6)));
+		assertEquals(1L, window.getCount(new ColorKey(2, 6)));
+		assertEquals(2L, window.getCount(new ColorKey(3, 6)));
+		assertEquals(0L, window.getFeatureVector().colorCounts[1]);
+		assertEquals(2L, window.getFeatureVector().colorCounts[3]);
+		assertEquals(2, window.getTable().getSize());
+	}
+	@Test
+	public void testDoubleHashing() throws Exception {
+		makeCollidingKeys(); // All eight keys have home slot 0 when tableSize=13
+		testHT = new ColorHash(12, 15, "Double Hashing", 0.9);
+		assertEquals(13, testHT.getTableSize()); // rounded up to a prime
+		ColorKey[] keys = {blackKey1, blackKey2, blackKey3, blackKey4, blackKey5, blackKey6, blackKey7, blackKey8};
+		for (int i = 0; i < keys.length; i++) {
+			testHT.colorHashPut(keys[i], i + 1);
+		}
+		// Keys sharing a home slot step by different amounts: 13 by 7, 26 by 2, 39 by 8
+		assertEquals(blackKey2, testHT.getKeyAt(7));
+		assertEquals(blackKey3, testHT.getKeyAt(2));
+		assertEquals(blackKey4, testHT.getKeyAt(8));
+		for (int i = 0; i < keys.length; i++) {
+			assertEquals(i + 1L, testHT.getCount(keys[i]));
+		}
+		ResponseItem ri = testHT.colorHashGet(blackKey3);
+		assertEquals(1, ri.nCollisions); // one step past slot 0
+	}
+	@Test
+	public void testHopscotchNeighborhoods() throws Exception {
+		HopscotchColorHash hopscotch = new HopscotchColorHash(3, 15, 0.95);
+		assertEquals(32, hopscotch.getTableSize()); // at least one neighborhood
+		for (int bits = 0; bits < 3000; bits++) {
+			hopscotch.increment(new ColorKey(bits, 15));
+			hopscotch.increment(new ColorKey(bits, 15));
+		}
+		int tableSize = hopscotch.getTableSize();
+		assertEquals(true, hopscotch.getLoadFactor() > 0.7);
+		// Every key sits within NEIGHBORHOOD slots of its home slot
+		int hashShift = 32 - Integer.numberOfTrailingZeros(tableSize);
+		for (int i = 0; i < tableSize; i++) {
+			ColorKey key = hopscotch.getKeyAt(i);
+			if (key != null) {
+				int home = (key.getBits() * 0x9E3779B9) >>> hashShift;
+				assertEquals(true, ((i - home) & (tableSize - 1)) < HopscotchColorHash.NEIGHBORHOOD);
+				assertEquals(2L, hopscotch.getValueAt(i));
+			}
+		}
+		for (int bits = 0; bits < 3000; bits++) {
+			ResponseItem ri = hopscotch.colorHashGet(new ColorKey(bits, 15));
+			assertEquals(2L, ri.value);
+			assertEquals(true, ri.nCollisions < HopscotchColorHash.NEIGHBORHOOD);
+		}
+		assertEquals(0L, hopscotch.getCount(new ColorKey(5000, 15)));
+	}
+	@Test
+	public void testSwissTable() throws Exception {
+		SwissColorHash swiss = new SwissColorHash(3, 15, 0.875);
+		long total = 0;
+		for (int bits = 0; bits < 5000; bits++) {
+			for (int n = 0; n <= bits % 3; n++) {
+				ResponseItem ri = swiss.increment(new ColorKey(bits, 15));
+				assertEquals(n > 0, ri.didUpdate);
+				total++;
+			}
+		}
+		int tableSize = swiss.getTableSize();
+		assertEquals(0, tableSize % SwissColorHash.GROUP_SIZE);
+		assertEquals(1, Integer.bitCount(tableSize / SwissColorHash.GROUP_SIZE)); // a power of two groups
+		for (int bits = 0; bits < 5000; bits++) {
+			assertEquals(bits % 3 + 1L, swiss.getCount(new ColorKey(bits, 15)));
+		}
+		assertEquals(0L, swiss.getCount(new ColorKey(6000, 15)));
+		boolean threw = false;
+		try {
+			swiss.colorHashGet(new ColorKey(6000, 15));
+		} catch (ColorHash.MissingColorKeyException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+
+		// Walking the slots finds every count once
+		long walked = 0;
+		for (int i = 0; i < tableSize; i++) {
+			if (swiss.getKeyAt(i) != null) {
+				walked += swiss.getValueAt(i);
+			} else {
+				assertEquals(-1L, swiss.getValueAt(i));
+			}
+		}
+		assertEquals(total, walked);
+		assertEquals(7L, swiss.colorHashPut(new ColorKey(42, 15), 7L).value);
+		assertEquals(7L, swiss.getCount(new ColorKey(42, 15)));
+	}
+	@Test
+	public void testIndexGettersDoNotMigrate() throws Exception {
+		testHT = new ColorHash(101, 15, "Linear Probing", 0.5);
+		testHT.setIncrementalResize(true);
+		int bits = 0;
+		while (!testHT.increment(new ColorKey(bits++, 15)).didRehash) {}
+		assertEquals(211, testHT.getTableSize()); // the new table, still mostly empty
+		int indexed = 0;
+		for (int i = 0; i < testHT.getTableSize(); i++) {
+			if (testHT.getKeyAt(i) != null) {
+				indexed++;
+			}
+		}
+		assertEquals(true, indexed < bits); // reading by index migrated nothing
+
+		testHT.finishResize();
+		indexed = 0;
+		for (int i = 0; i < testHT.getTableSize(); i++) {
+			if (testHT.getKeyAt(i) != null) {
+				assertEquals(1L, testHT.getValueAt(i));
+				indexed++;
+			}
+		}
+		assertEquals(bits, indexed);
+	}
+	@Test
+	public void testPowerOfTwoSizingAndTriangularProbing() throws Exception {
+		testHT = new ColorHash(100, 15, "Linear Probing", 0.5, ColorHash.POWER_OF_TWO_SIZING);
+		assertEquals(128, testHT.getTableSize()); // rounded up to a power of two
+		assertEquals(HashStrategy.MURMUR3, testHT.getHashStrategy());
+		for (int bits = 0; bits < 64; bits++) {
+			testHT.increment(new ColorKey(bits, 15));
+		}
+		assertEquals(256, testHT.getTableSize()); // doubled, not grown to a prime
+		assertEquals(1L, testHT.getCount(new ColorKey(63, 15)));
+
+		// With the identity hash, keys 0, 16, 32, ... all have home slot 0 of a 16 slot table.
+		// Quadratic probing then steps by triangular numbers: home + 1, + 3, + 6, + 10, + 15, + 21.
+		testHT = new ColorHash(16, 15, "Quadratic Probing", 0.49, ColorHash.POWER_OF_TWO_SIZING,
+				HashStrategy.IDENTITY);
+		int[] expectedSlots = {0, 1, 3, 6, 10, 15, 5};
+		for (int i = 0; i < expectedSlots.length; i++) {
+			ResponseItem ri = testHT.colorHashPut(new ColorKey(16 * i, 15), i + 1);
+			assertEquals(i, ri.nCollisions);
+		}
+		assertEquals(16, testHT.getTableSize());
+		for (int i = 0; i < expectedSlots.length; i++) {
+			assertEquals(new ColorKey(16 * i, 15), testHT.getKeyAt(expectedSlots[i]));
+			assertEquals(i + 1L, testHT.getValueAt(expectedSlots[i]));
+		}
+	}
+	@Test
+	public void testDirectColorTable() throws Exception {
+		ColorTable table = ColorHash.forKeySpace(3, 6, "Linear Probing", 0.5, 1L << 20);
+		assertEquals(true, table instanceof DirectColorTable);
+		assertEquals(64, table.getTableSize()); // one slot per possible key
+		table = ColorHash.forKeySpace(3, 24, "Linear Probing", 0.5, 1L << 20);
+		assertEquals(true, table instanceof ColorHash); // 2^24 counts do not fit in the budget
+		table = ColorHash.forKeySpace(3, 6, "Linear Probing", 0.5, 0);
+		assertEquals(true, table instanceof ColorHash);
+
+		DirectColorTable direct = new DirectColorTable(6);
+		ColorKey red = new ColorKey(255, 0, 0, 6);
+		assertEquals(false, direct.increment(red).didUpdate);
+		assertEquals(2L, direct.increment(red).value);
+		assertEquals(0, direct.increment(red).nCollisions);
+		assertEquals(red, direct.getKeyAt(red.getBits()));
+		assertEquals(3L, direct.getValueAt(red.getBits()));
+
+		ColorKey black = new ColorKey(0, 6);
+		direct.colorHashPut(black, 0L); // a stored 0 is still a key
+		assertEquals(black, direct.getKeyAt(0));
+		assertEquals(0L, direct.getValueAt(0));
+		assertEquals(null, direct.getKeyAt(1));
+		assertEquals(-1L, direct.getValueAt(1));
+		boolean threw = false;
+		try {
+			direct.colorHashGet(new ColorKey(1, 6));
+		} catch (ColorHash.MissingColorKeyException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+
+		FeatureVector fv = new FeatureVector(6);
+		fv.getTheCounts(direct);
+		assertEquals(3L, fv.colorCounts[red.getBits()]);
+		assertEquals(3.0 / 64, direct.getLoadFactor(), 1e-9); // two keys, plus one
+	}
+	@Test
+	public void testConcurrentCountingAcrossResizes() throws Exception {
+		final int nThreads = 8;
+		final int nKeys = 20000;
+		final int repeats = 5;
+		final ConcurrentColorHash table = new ConcurrentColorHash(16, 15, 0.5); // grows many times while counting
+		Thread[] threads = new Thread[nThreads];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < nThreads; t++) {
+			final int first = t;
+			threads[t] = new Thread(() -> {
+				try {
+					for (int r = 0; r < repeats; r++) {
+						for (int i = 0; i < nKeys; i++) {
+							table.increment(new ColorKey((i * 7 + first * 997) % nKeys, 15)); // threads collide on keys
+						}
+					}
+				} catch (Throwable e) {
+					failure[0] = e;
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(null, failure[0]);
+
+		// Every increment is counted once, whatever resize it ran into
+		long total = 0;
+		java.util.HashSet<Integer> seen = new java.util.HashSet<Integer>();
+		for (int i = 0; i < table.getTableSize(); i++) {
+			ColorKey key = table.getKeyAt(i);
+			if (key != null) {
+				assertEquals(true, seen.add(key.getBits())); // no key is stored twice
+				total += table.getValueAt(i);
+			}
+		}
+		assertEquals((long) nThreads * repeats * nKeys, total);
+		assertEquals(nKeys, seen.size());
+		for (int bits = 0; bits < nKeys; bits++) {
+			assertEquals((long) nThreads * repeats, table.getCount(new ColorKey(bits, 15)));
+		}
+		assertEquals(true, table.getTableSize() >= 2 * nKeys);
+	}
+	@Test
+	public void testConcurrentLookupsDuringResize() throws Exception {
+		final ConcurrentColorHash table = new ConcurrentColorHash(16, 15, 0.5);
+		for (int bits = 0; bits < 1000; bits++) {
+			table.colorHashPut(new ColorKey(bits, 15), 1000L + bits);
+		}
+		// One thread keeps inserting new keys, forcing resizes, while another checks the old keys never change
+		final boolean[] mismatch = new boolean[1];
+		Thread writer = new Thread(() -> {
+			try {
+				for (int bits = 1000; bits < 30000; bits++) {
+					table.increment(new ColorKey(bits, 15));
+				}
+			} catch (Exception e) {
+				mismatch[0] = true;
+			}
+		});
+		Thread reader = new Thread(() -> {
+			try {
+				for (int pass = 0; pass < 20; pass++) {
+					for (int bits = 0; bits < 1000; bits++) {
+						if (table.getCount(new ColorKey(bits, 15)) != 1000L + bits) {
+							mismatch[0] = true;
+						}
+					}
+				}
+			} catch (Exception e) {
+				mismatch[0] = true;
+			}
+		});
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+		assertEquals(false, mismatch[0]);
+		assertEquals(1L, table.getCount(new ColorKey(29999, 15)));
+	}
+	@Test
+	public void testOffHeapColorHash() throws Exception {
+		OffHeapColorHash offHeap = new OffHeapColorHash(3, 15, 0.5);
+		assertEquals(16, offHeap.getTableSize());
+		for (int bits = 0; bits < 3000; bits++) {
+			offHeap.increment(new ColorKey(bits, 15));
+		}
+		offHeap.colorHashPut(new ColorKey(7, 15), 42L);
+		assertEquals(8192, offHeap.getTableSize()); // doubled as it filled
+		assertEquals(42L, offHeap.getCount(new ColorKey(7, 15)));
+		assertEquals(1L, offHeap.colorHashGet(new ColorKey(2999, 15)).value);
+		assertEquals(0L, offHeap.getCount(new ColorKey(5000, 15)));
+		long total = 0;
+		for (int i = 0; i < offHeap.getTableSize(); i++) {
+			if (offHeap.getKeyAt(i) != null) {
+				total += offHeap.getValueAt(i);
+			}
+		}
+		assertEquals(2999L + 42L, total);
+
+		offHeap.close();
+		offHeap.close(); // closing twice does nothing
+		boolean threw = false;
+		try {
+			offHeap.getCount(new ColorKey(7, 15));
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		threw = false;
+		try {
+			offHeap.increment(new ColorKey(7, 15));
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		threw = false;
+		try {
+			offHeap.getKeyAt(0);
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		threw = false;
+		try {
+			offHeap.getValueAt(0);
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		threw = false;
+		try {
+			offHeap.getLoadFactor();
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		assertEquals(15, offHeap.getBPP());
+	}
+	@Test
+	public void testSaveKeepsOpenMappingsValid() throws Exception {
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.5);
+		testHT.colorHashPut(new ColorKey(5, 15), 50L);
+		testHT.save(file.getPath());
+		MappedColorHash before = MappedColorHash.open(file.getPath());
+
+		// Saving a bigger table over the file replaces it instead of rewriting it in place
+		for (int bits = 0; bits < 1000; bits++) {
+			testHT.increment(new ColorKey(bits, 15));
+		}
+		testHT.save(file.getPath());
+		assertEquals(50L, before.getCount(new ColorKey(5, 15)));
+		assertEquals(7, before.getTableSize());
+		MappedColorHash after = MappedColorHash.open(file.getPath());
+		assertEquals(51L, after.getCount(new ColorKey(5, 15)));
+		before.close();
+		after.close();
+		assertEquals(0, file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName())
+				&& name.endsWith(".tmp")).length); // no temporary file left behind
+	}
+	@Test
+	public void testCachedHistogramIsRebuiltForEditedImage() throws Exception {
+		java.io.File image = java.io.File.createTempFile("painting", ".png");
+		java.io.File histogram = java.io.File.createTempFile("painting", ".colorhash");
+		image.deleteOnExit();
+		histogram.deleteOnExit();
+		java.awt.image.BufferedImage pixels = new java.awt.image.BufferedImage(4, 4,
+				java.awt.image.BufferedImage.TYPE_INT_RGB); // all black
+		javax.imageio.ImageIO.write(pixels, "png", image);
+		histogram.delete();
+
+		ComparePaintings cp = new ComparePaintings();
+		ColorTable table = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(16L, table.getCount(new ColorKey(0, 6)));
+		table = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(true, table instanceof MappedColorHash); // reused
+		((MappedColorHash) table).close();
+
+		pixels.setRGB(0, 0, 0xFFFFFF); // one white pixel
+		javax.imageio.ImageIO.write(pixels, "png", image);
+		image.setLastModified(histogram.lastModified() + 2000);
+		table = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(15L, table.getCount(new ColorKey(0, 6))); // counted again, not the stale file
+		assertEquals(1L, table.getCount(new ColorKey(255, 255, 255, 6)));
+	}
+	@Test
+	public void testSaveAndOpenRoundTrip() throws Exception {
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		String[] methods = {"Linear Probing", "Quadratic Probing", "Robin Hood Hashing", "Double Hashing"};
+		String[] policies = {ColorHash.PRIME_SIZING, ColorHash.POWER_OF_TWO_SIZING};
+		for (String method : methods) {
+			for (String policy : policies) {
+				testHT = new ColorHash(7, 15, method, 0.45, policy);
+				for (int i = 0; i < 300; i++) {
+					testHT.colorHashPut(new ColorKey(i * 37, 15), i + 1);
+				}
+				for (int i = 0; i < 300; i += 3) {
+					testHT.remove(new ColorKey(i * 37, 15)); // tombstones for quadratic probing and double hashing
+				}
+				testHT.setCapacityLimit(testHT.getSize(), ColorHash.OVERFLOW_BUCKET);
+				testHT.colorHashPut(new ColorKey(20000, 15), 5L); // no room: goes to the overflow count
+				testHT.save(file.getPath());
+
+				MappedColorHash mapped = MappedColorHash.open(file.getPath());
+				assertEquals(15, mapped.getBPP());
+				assertEquals(testHT.getTableSize(), mapped.getTableSize());
+				assertEquals(5L, mapped.getOverflowCount());
+				int[] keys = testHT.getKeyTable();
+				for (int i = 0; i < keys.length; i++) {
+					assertEquals(keys[i], mapped.getKeyBitsAt(i)); // tombstones included
+				}
+				for (int i = 0; i < 300; i++) {
+					ColorKey key = new ColorKey(i * 37, 15);
+					assertEquals(i % 3 == 0 ? 0L : i + 1L, mapped.getCount(key));
+					if (i % 3 != 0) {
+						assertEquals(testHT.colorHashGet(key).nCollisions, mapped.colorHashGet(key).nCollisions);
+					}
+				}
+				FeatureVector saved = new FeatureVector(15);
+				saved.getTheCounts(mapped);
+				FeatureVector live = new FeatureVector(15);
+				live.getTheCounts(testHT);
+				assertEquals(true, java.util.Arrays.equals(live.colorCounts, saved.colorCounts));
+				assertEquals(live.overflowCount, saved.overflowCount);
+				mapped.close();
+			}
+		}
+	}
+	@Test
+	public void testOpenRejectsCorruptFiles() throws Exception {
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.5);
+		testHT.increment(new ColorKey(1, 15));
+		int[][] corruptions = { // {byte offset, int written there}
+				{0, 0x12345678},  // magic
+				{4, 99},          // version
+				{12, 7},          // collision method
+				{24, 1 << 20},    // table size, which no longer matches the file length
+				{28, -1},         // hash strategy
+				{8, 7},           // bits per pixel
+				{8, 27},
+				{16, 2},          // sizing policy
+				{20, 7},          // number of keys: as many as slots
+				{20, -1},
+				{20, 2},          // number of keys: more than the key array holds
+				{48 + 4, 1 << 15}, // the key in slot 1, outside the 15 bpp key space
+				{48, -5}};        // slot 0, negative but neither EMPTY_SLOT nor TOMBSTONE
+		for (int[] corruption : corruptions) {
+			testHT.save(file.getPath());
+			writeInt(file, corruption[0], corruption[1]);
+			assertEquals(true, openFails(file));
+		}
+
+		testHT.save(file.getPath());
+		for (int i = 0; i < 7; i++) {
+			writeInt(file, 48 + 4 * i, 5); // no empty slot left to end a probe sequence
+		}
+		assertEquals(true, openFails(file));
+
+		testHT.save(file.getPath());
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw")) {
+			raf.setLength(raf.length() - 8); // the last value is cut off
+		}
+		assertEquals(true, openFails(file));
+		try (java.io.RandomAccessFile raf = new java.io.RandomAccessFile(file, "rw")) {
+			raf.setLength(20); // shorter than the header
+		}
+		assertEquals(true, openFails(file));
+	}
+	@Test
+	public void testMappedLookupGivesUpOnUnreachableEmptySlots() throws Exception {
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		testHT = new ColorHash(7, 15, "Quadratic Probing", 0.45);
+		testHT.increment(new ColorKey(1, 15));
+		testHT.save(file.getPath());
+		// Quadratic probing from slot 0 of a 7-slot table only visits slots 0, 1, 2 and 4. Filling those with
+		// other keys leaves a file that passes every check but where a lookup from slot 0 never meets an empty slot.
+		int[] slotKeys = {7, 8, 9, ColorHash.EMPTY_SLOT, 11, ColorHash.EMPTY_SLOT, ColorHash.EMPTY_SLOT};
+		for (int i = 0; i < slotKeys.length; i++) {
+			writeInt(file, 48 + 4 * i, slotKeys[i]);
+		}
+		writeInt(file, 20, 4);
+		MappedColorHash mapped = MappedColorHash.open(file.getPath());
+		assertEquals(0L, mapped.getCount(new ColorKey(63, 15)));
+		mapped.close();
+	}
+	private static void writeInt(java.io.File file, int offset, int value) throws Exception {
+		try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(file.toPath(),
+				java.nio.file.StandardOpenOption.WRITE)) {
+			java.nio.ByteBuffer bytes = java.nio.ByteBuffer.allocate(4).order(MappedColorHash.BYTE_ORDER);
+			bytes.putInt(value).flip();
+			channel.write(bytes, offset);
+		}
+	}
+	private static boolean openFails(java.io.File file) {
+		try {
+			MappedColorHash.open(file.getPath()).close();
+			return false;
+		} catch (java.io.IOException e) {
+			return true;
+		}
+	}
+	@Test
+	public void testIncrementAllOnEveryTable() throws Exception {
+		int[] keys = new int[3000];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = (i * i) % 97;
+		}
+		DirectColorTable direct = new DirectColorTable(9);
+		direct.incrementAll(keys, 0, keys.length);
+		ConcurrentColorHash concurrent = new ConcurrentColorHash(16, 9, 0.5);
+		ProbeStats stats = new ProbeStats();
+		concurrent.incrementAll(keys, 0, keys.length, stats);
+		testHT = new ColorHash(7, 9, "Linear Probing", 0.5);
+		for (int key : keys) {
+			testHT.increment(new ColorKey(key, 9));
+		}
+		for (int bits = 0; bits < 512; bits++) {
+			ColorKey key = new ColorKey(bits, 9);
+			assertEquals(testHT.getCount(key), direct.getCount(key));
+			assertEquals(testHT.getCount(key), concurrent.getCount(key));
+		}
+		assertEquals(3000L, stats.nOperations);
+		assertEquals(3000L - testHT.getSize(), stats.nUpdates);
+		long before = direct.getCount(new ColorKey(1, 9));
+		assertEquals(before + 1, direct.incrementBits(1));
+		assertEquals(1L, direct.incrementBits(500)); // (i * i) % 97 never reaches 500
+		assertEquals(1L, concurrent.incrementBits(500, null));
+	}
+	@Test
+	public void testBatchGrowthIsBoundedByKeySpace() throws Exception {
+		int[] column = new int[3000];
+		for (int i = 0; i < column.length; i++) {
+			column[i] = i % 8; // every 3 bpp color
+		}
+		testHT = new ColorHash(7, 3, "Linear Probing", 0.5);
+		for (int x = 0; x < 5; x++) {
+			testHT.incrementAll(column, 0, column.length);
+		}
+		assertEquals(8, testHT.getSize());
+		assertEquals(true, testHT.getTableSize() <= 32); // sized for 8 keys, not for 3000 more per column
+		assertEquals(1875L, testHT.getCount(new ColorKey(5, 3)));
+	}
+	@Test
+	public void testForEachCursorAndOccupancyBitmap() throws Exception {
+		for (boolean tracking : new boolean[] {false, true}) {
+			testHT = new ColorHash(7, 15, "Quadratic Probing", 0.45);
+			testHT.setOccupancyTracking(tracking);
+			for (int i = 0; i < 500; i++) {
+				testHT.colorHashPut(new ColorKey(i * 61 % 32768, 15), i + 1);
+			}
+			for (int i = 0; i < 500; i += 2) {
+				testHT.remove(new ColorKey(i * 61 % 32768, 15)); // leaves tombstones, which must be skipped
+			}
+			testHT.setIncrementalResize(true);
+			for (int i = 500; i < 700; i++) { // starts a resize that forEach and cursor() have to finish
+				testHT.colorHashPut(new ColorKey(i * 61 % 32768, 15), i + 1);
+			}
+
+			long[] seen = new long[32768];
+			int[] visits = {0};
+			testHT.forEach((bits, count) -> {
+				seen[bits] = count;
+				visits[0]++;
+			});
+			assertEquals(testHT.getSize(), visits[0]);
+			for (int i = 0; i < 700; i++) {
+				assertEquals(i < 500 && i % 2 == 0 ? 0L : i + 1L, seen[i * 61 % 32768]);
+			}
+
+			ColorHash.Cursor cursor = testHT.cursor();
+			for (int walk = 0; walk < 2; walk++) { // a reset cursor walks the table again
+				int lastIndex = -1;
+				int entries = 0;
+				while (cursor.next()) {
+					assertEquals(true, cursor.getIndex() > lastIndex);
+					lastIndex = cursor.getIndex();
+					assertEquals(testHT.getKeyAt(lastIndex).getBits(), cursor.getBits());
+					assertEquals(testHT.getValueAt(lastIndex), cursor.getCount());
+					assertEquals(seen[cursor.getBits()], cursor.getCount());
+					entries++;
+				}
+				assertEquals(false, cursor.next()); // stays at the end
+				assertEquals(testHT.getSize(), entries);
+				cursor.reset();
+			}
+		}
+		ColorHash empty = new ColorHash(7, 15, "Linear Probing", 0.5);
+		empty.setOccupancyTracking(true);
+		assertEquals(false, empty.cursor().next());
+	}
+	@Test
+	public void testHashStrategies() throws Exception {
+		assertEquals(1234 % 1031, HashStrategy.IDENTITY.homeSlot(1234, 1031, false));
+		assertEquals(1234 & 1023, HashStrategy.IDENTITY.homeSlot(1234, 1024, true));
+		assertEquals(HashStrategy.TABULATION.homeSlot(99999, 4096, true),
+				new HashStrategy.Tabulation(0x5EEDC0102L).homeSlot(99999, 4096, true)); // same seed, same hash
+
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		for (HashStrategy strategy : HashStrategy.STRATEGIES) {
+			for (int length : new int[] {1024, 1031}) {
+				boolean powerOfTwo = length == 1024;
+				boolean[] used = new boolean[length];
+				int distinct = 0;
+				for (int i = 0; i < 1 << 14; i++) {
+					int slot = strategy.homeSlot(i << 10, length, powerOfTwo); // keys that differ only in high bits
+					assertEquals(true, slot >= 0 && slot < length);
+					assertEquals(slot, strategy.homeSlot(i << 10, length, powerOfTwo));
+					if (!used[slot]) {
+						used[slot] = true;
+						distinct++;
+					}
+				}
+				if (strategy != HashStrategy.IDENTITY || !powerOfTwo) {
+					assertEquals(true, distinct > length * 9 / 10); // spread over the whole table
+				} else {
+					assertEquals(1, distinct); // the identity hash keeps only the low bits
+				}
+			}
+
+			testHT = new ColorHash(7, 24, "Linear Probing", 0.5, ColorHash.POWER_OF_TWO_SIZING, strategy);
+			assertEquals(strategy, testHT.getHashStrategy());
+			for (int i = 0; i < 2000; i++) {
+				testHT.colorHashPut(new ColorKey(i << 10, 24), i + 1);
+			}
+			testHT.save(file.getPath());
+			MappedColorHash mapped = MappedColorHash.open(file.getPath());
+			for (int i = 0; i < 2000; i++) {
+				assertEquals(i + 1L, testHT.getCount(new ColorKey(i << 10, 24)));
+				assertEquals(i + 1L, mapped.getCount(new ColorKey(i << 10, 24))); // read back with the same strategy
+			}
+			mapped.close();
+		}
+	}
+	@Test
+	public void testHyperLogLog() throws Exception {
+		HyperLogLog hll = new HyperLogLog();
+		assertEquals(0L, hll.estimate());
+		for (int i = 0; i < 10; i++) {
+			hll.addBits(i);
+		}
+		assertEquals(10L, hll.estimate());
+
+		for (int n : new int[] {1000, 100000, 1 << 24}) {
+			hll = new HyperLogLog();
+			for (int i = 0; i < n; i++) {
+				hll.addBits(i);
+			}
+			double error = Math.abs(hll.estimate() - n) / (double) n;
+			assertEquals(true, error < 4 * hll.getStandardError()); // 4 standard errors: 3.3%
+			long before = hll.estimate();
+			for (int i = 0; i < n; i += 7) {
+				hll.addBits(i); // keys seen before change nothing
+			}
+			assertEquals(before, hll.estimate());
+		}
+
+		HyperLogLog left = new HyperLogLog(12);
+		HyperLogLog right = new HyperLogLog(12);
+		HyperLogLog whole = new HyperLogLog(12);
+		for (int i = 0; i < 60000; i++) {
+			whole.addBits(i);
+			if (i < 40000) {
+				left.addBits(i);
+			}
+			if (i >= 20000) {
+				right.addBits(i); // 20000 keys overlap with left
+			}
+		}
+		left.mergeFrom(right);
+		assertEquals(whole.estimate(), left.estimate());
+
+		boolean threw = false;
+		try {
+			left.mergeFrom(new HyperLogLog(13));
+		} catch (IllegalArgumentException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+		threw = false;
+		try {
+			new HyperLogLog(3);
+		} catch (IllegalArgumentException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+	}
+	@Test
+	public void testSketchFeatureVectorsOfDisjointImages() throws Exception {
+		FeatureVector exactA = new FeatureVector(15);
+		FeatureVector[] tracked = new FeatureVector[2];
+		FeatureVector[] floored = new FeatureVector[2];
+		for (int image = 0; image < 2; image++) {
+			CountMinColorSketch withCandidates = new CountMinColorSketch(15, 512, 5, true);
+			withCandidates.setCandidateTracking(withCandidates.getWidth());
+			CountMinColorSketch plain = new CountMinColorSketch(15, 512, 5, true);
+			for (int color = 0; color < 200; color++) {
+				int bits = image * 20000 + color; // the two images share no color
+				for (int n = 0; n < 1 + color % 50; n++) {
+					withCandidates.incrementBits(bits);
+					plain.incrementBits(bits);
+					if (image == 0) {
+						exactA.colorCounts[bits]++;
+					}
+				}
+			}
+			tracked[image] = new FeatureVector(15);
+			tracked[image].getTheCounts(withCandidates);
+			floored[image] = new FeatureVector(15);
+			floored[image].getTheCounts(plain);
+		}
+		assertEquals(0.0, tracked[0].cosineSimilarity(tracked[1]), 1e-12);
+		assertEquals(true, floored[0].cosineSimilarity(floored[1]) < 0.01);
+		assertEquals(1.0, tracked[0].cosineSimilarity(exactA), 1e-12); // 200 colors fit, so every count is exact
+		assertEquals(true, floored[0].cosineSimilarity(exactA) > 0.95); // taking off the floor undercounts a little
+
+		boolean threw = false;
+		try {
+			CountMinColorSketch started = new CountMinColorSketch(15, 512, 5, true);
+			started.incrementBits(1);
+			started.setCandidateTracking(16);
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+	}
+	@Test
+	public void testOverflowCountsOnlyInMagnitudes() {
+		FeatureVector a = new FeatureVector(6);
+		FeatureVector b = new FeatureVector(6);
+		a.colorCounts[1] = 3;
+		b.colorCounts[2] = 4;
+		a.overflowCount = 100;
+		b.overflowCount = 100;
+		assertEquals(0.0, a.cosineSimilarity(b), 1e-12); // the dropped colors are not known to be shared
+		b.colorCounts[1] = 3;
+		b.colorCounts[2] = 0;
+		b.overflowCount = 4;
+		assertEquals(9.0 / (Math.sqrt(9 + 10000) * 5), a.cosineSimilarity(b), 1e-12);
+	}
+	@Test
+	public void testEvictionKeepsAllButTheRarestQuarter() throws Exception {
+		for (boolean ties : new boolean[] {false, true}) {
+			testHT = new ColorHash(7, 24, "Linear Probing", 0.5, ColorHash.POWER_OF_TWO_SIZING);
+			testHT.setCapacityLimit(20000, ColorHash.EVICT_RAREST);
+			long total = 0;
+			for (int i = 0; i < 20000; i++) {
+				long count = ties ? 7 : (i * 7919) % 20000 + 1; // every count from 1 to 20000 once, shuffled
+				testHT.colorHashPut(new ColorKey(i, 24), count);
+				total += count;
+			}
+			testHT.increment(new ColorKey(30000, 24)); // the table is full: evicts 5000 keys
+			total++;
+			assertEquals(15001, testHT.getSize());
+			long kept = 0;
+			for (int i = 0; i < 20000; i++) {
+				long count = testHT.getCount(new ColorKey(i, 24));
+				if (!ties) {
+					assertEquals((i * 7919) % 20000 + 1 > 5000 ? (i * 7919) % 20000 + 1L : 0L, count);
+				}
+				kept += count;
+			}
+			assertEquals(1L, testHT.getCount(new ColorKey(30000, 24)));
+			assertEquals(total, kept + 1 + testHT.getOverflowCount());
+		}
+	}
+	@Test
+	public void testSlidingWindowOfFullHdFrames() throws Exception {
+		WindowedColorCounter window = new WindowedColorCounter(24, WindowedColorCounter.SLIDING_WINDOW, 3, 0);
+		int[] pixels = new int[1920 * 1080];
+		for (int frame = 0; frame < 5; frame++) {
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = ((i + frame) % 64) * 0x040404; // 64 grays, shifted by one each frame
+			}
+			window.addFrame(pixels, 0, pixels.length);
+		}
+		assertEquals(5L, window.getFrameCount());
+		assertEquals(64, window.getTable().getSize());
+		assertEquals(true, window.getTable().getTableSize() <= 256); // sized by colors, not by 2 million pixels
+		long total = 0;
+		for (int gray = 0; gray < 64; gray++) {
+			total += window.getCount(new ColorKey(gray * 0x040404, 24));
+		}
+		assertEquals(3L * pixels.length, total); // only the last 3 frames
+		assertEquals(3L * pixels.length / 64, window.getCount(new ColorKey(0, 24))); // 1920 * 1080 is a multiple of 64
+	}
+	@Test
+	public void testConcurrentPutRejectsReservedValues() throws Exception {
+		ConcurrentColorHash table = new ConcurrentColorHash(16, 15, 0.5);
+		ColorKey key = new ColorKey(7, 15);
+		for (long reserved : new long[] {Long.MIN_VALUE, Long.MIN_VALUE + 1}) {
+			boolean threw = false;
+			try {
+				table.colorHashPut(key, reserved);
+			} catch (IllegalArgumentException e) {
+				threw = true;
+			}
+			assertEquals(true, threw);
+		}
+		assertEquals(0L, table.getCount(key));
+		table.colorHashPut(key, Long.MIN_VALUE + 2);
+		assertEquals(Long.MIN_VALUE + 2, table.getCount(key));
+	}
+	@Test
+	public void testClosedMappingCannotBeRead() throws Exception {
+		java.io.File file = java.io.File.createTempFile("colorhash", ".bin");
+		file.deleteOnExit();
+		testHT = new ColorHash(7, 15, "Linear Probing", 0.5);
+		testHT.increment(new ColorKey(1, 15));
+		testHT.save(file.getPath());
+		MappedColorHash mapped = MappedColorHash.open(file.getPath());
+		assertEquals(1, mapped.getKeyBitsAt(1));
+		mapped.close();
+		mapped.close(); // closing twice does nothing
+		int failures = 0;
+		try {
+			mapped.getKeyBitsAt(1);
+		} catch (IllegalStateException e) {
+			failures++;
+		}
+		try {
+			mapped.getValueAt(1);
+		} catch (IllegalStateException e) {
+			failures++;
+		}
+		try {
+			mapped.getKeyAt(1);
+		} catch (IllegalStateException e) {
+			failures++;
+		}
+		try {
+			mapped.getCount(new ColorKey(1, 15));
+		} catch (IllegalStateException e) {
+			failures++;
+		}
+		try {
+			new FeatureVector(15).getTheCounts(mapped);
+		} catch (IllegalStateException e) {
+			failures++;
+		}
+		assertEquals(5, failures); // each throws instead of reading unmapped memory
+	}
+	@Test
+	public void testCachedHistogramFallsBackAndClosesOldMappings() throws Exception {
+		java.io.File image = java.io.File.createTempFile("painting", ".png");
+		java.io.File histogram = java.io.File.createTempFile("painting", ".colorhash");
+		image.deleteOnExit();
+		histogram.deleteOnExit();
+		javax.imageio.ImageIO.write(new java.awt.image.BufferedImage(4, 4,
+				java.awt.image.BufferedImage.TYPE_INT_RGB), "png", image);
+		histogram.delete();
+
+		ComparePaintings cp = new ComparePaintings();
+		cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		ColorTable first = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(true, first instanceof MappedColorHash);
+		ColorTable second = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(16L, second.getCount(new ColorKey(0, 6)));
+		boolean threw = false;
+		try {
+			first.getCount(new ColorKey(0, 6)); // replaced, so closed
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		assertEquals(true, threw);
+
+		long modified = histogram.lastModified();
+		for (int i = 0; i < ((MappedColorHash) second).getTableSize(); i++) {
+			writeInt(histogram, 48 + 4 * i, 5); // damage every key slot
+		}
+		histogram.setLastModified(modified);
+		ColorTable recounted = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(true, recounted instanceof ColorHash);
+		assertEquals(16L, recounted.getCount(new ColorKey(0, 6)));
+		ColorTable reopened = cp.countColorsCached(image.getPath(), 6, histogram.getPath());
+		assertEquals(true, reopened instanceof MappedColorHash); // the rebuilt file is good again
+		assertEquals(16L, reopened.getCount(new ColorKey(0, 6)));
+		((MappedColorHash) reopened).close();
+	}
+	@Test
+	public void testApproximateCountingTracksFewCandidates() throws Exception {
+		java.io.File image = java.io.File.createTempFile("painting", ".png");
+		image.deleteOnExit();
+		java.awt.image.BufferedImage pixels = new java.awt.image.BufferedImage(64, 64,
+				java.awt.image.BufferedImage.TYPE_INT_RGB);
+		for (int x = 0; x < 64; x++) {
+			for (int y = 0; y < 64; y++) {
+				// Half white, a quarter red, and the rest a spread of 64 rare dark colors
+				int rgb = x < 32 ? 0xFFFFFF : x < 48 ? 0xFF0000 : ((x * 7 + y) % 4) * 0x202020 + (y % 16) * 0x0404;
+				pixels.setRGB(x, y, rgb);
+			}
+		}
+		javax.imageio.ImageIO.write(pixels, "png", image);
+
+		ComparePaintings cp = new ComparePaintings();
+		CountMinColorSketch sketch = cp.countColorsApproximately(image.getPath(), 24, 4096, 4, 2);
+		assertEquals(8, sketch.getCandidates().getCapacity()); // 4 per top color, not one per counter
+		FeatureVector fv = new FeatureVector(24);
+		fv.getTheCounts(sketch);
+		assertEquals(2048L, fv.colorCounts[0xFFFFFF]);
+		assertEquals(1024L, fv.colorCounts[0xFF0000]);
+		int nonZero = 0;
+		for (long count : fv.colorCounts) {
+			if (count != 0) {
+				nonZero++;
+			}
+		}
+		assertEquals(true, nonZero <= 8);
+	}
+	@Test
+	public void testMergeKeepsTheEntryCap() throws Exception {
+		for (String policy : new String[] {ColorHash.EVICT_RAREST, ColorHash.OVERFLOW_BUCKET}) {
+			ColorHash[] shards = new ColorHash[3];
+			long total = 0;
+			for (int s = 0; s < shards.length; s++) {
+				shards[s] = new ColorHash(7, 15, "Linear Probing", 0.5);
+				shards[s].setCapacityLimit(40, policy);
+				for (int i = 0; i < 60; i++) {
+					int bits = s * 1000 + i; // no color is shared between shards
+					for (int n = 0; n <= i % 5; n++) {
+						shards[s].incrementBits(bits, null);
+						total++;
+					}
+				}
+			}
+			ColorHash merged = ColorHash.merge(shards);
+			assertEquals(40, merged.getMaxEntries());
+			assertEquals(true, merged.getSize() <= 40);
+			long kept = 0;
+			for (int s = 0; s < shards.length; s++) {
+				for (int i = 0; i < 60; i++) {
+					kept += merged.getCount(new ColorKey(s * 1000 + i, 15));
+				}
+			}
+			assertEquals(total, kept + merged.getOverflowCount()); // nothing lost, nothing counted twice
+		}
+	}
 }
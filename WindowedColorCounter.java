@@ -0,0 +1,207 @@
+/**
+ * WindowedColorCounter keeps the color counts of a stream of frames, such as video, either over
+ * the last N frames (SLIDING_WINDOW) or with every frame weighing decay times less than the one
+ * after it (EXPONENTIAL_DECAY), and keeps a FeatureVector of those counts current.
+ * <p>
+ * Each frame is first counted into its own small ColorHash, which grows with the frame's distinct
+ * colors rather than its pixels, so adding a frame costs time in proportion to that frame, never
+ * to the window:
+ * <ul>
+ * <li>A sliding window keeps the frame histograms in a ring buffer, each packed into a key array
+ * and a count array with one entry per distinct color. Adding a frame adds its histogram to the
+ * window table and subtracts the histogram of the frame that falls out.</li>
+ * <li>Decay is applied lazily. Instead of shrinking every count each frame, new counts are scaled
+ * up by 1 / decay per frame, which leaves the ratios between counts, and so cosine similarity,
+ * the same. When the scale grows too large, every count is divided by it once and colors that
+ * have faded to nothing are dropped.</li>
+ * </ul>
+ * The FeatureVector is updated in place for the colors each frame touches. For a decayed counter
+ * it holds the scaled counts, which are proportional to the decayed ones; getDecayedCount gives the
+ * counts themselves.
+ * @author Ryan Linden ID:1571298, Brandon Ngo ID:1462375
+ */
+public class WindowedColorCounter {
+
+	// Constants
+	static final String SLIDING_WINDOW    = "Sliding Window";
+	static final String EXPONENTIAL_DECAY = "Exponential Decay";
+	private static final long UNIT = 1L << 8;             // Scaled value of one pixel right after renormalizing
+	private static final double MAX_SCALE = 1L << 24;     // Renormalize once one pixel is worth this much
+	private static final int FRAME_TABLE_SIZE = 64;
+
+	// Members
+	private ColorHash table;        // The window's counts, scaled by scale for a decayed counter
+	private FeatureVector fv;       // Kept equal to table
+	private int[][] frameKeys;      // Ring buffer of frame histogram colors, for a sliding window; null for decay
+	private long[][] frameCounts;   // The count of each color in frameKeys
+	private int nextFrame;          // The ring slot the next frame goes into
+	private long nFrames;           // Frames added so far
+	private double decay;           // Weight of a frame relative to the next one, for decay
+	private double scale;           // What one new pixel adds to table, for decay
+	private int bpp;                // bitsPerPixel
+
+	/**
+	 * Constructs a WindowedColorCounter object.
+	 * @param bitsPerPixel The number of bits per pixel: one of 3, 6, 9, 12, 15, 18, 21, or 24.
+	 * @param mode SLIDING_WINDOW or EXPONENTIAL_DECAY.
+	 * @param windowFrames The number of frames in a sliding window. Ignored for decay.
+	 * @param decayPerFrame How much a frame's counts shrink with each later frame, between 0 and 1. Ignored for a
+	 * sliding window.
+	 * @throws Exception If the mode, window or decay is invalid
+	 */
+	public WindowedColorCounter(int bitsPerPixel, String mode, int windowFrames, double decayPerFrame) throws Exception {
+		if (mode.equals(SLIDING_WINDOW)){
+			if (windowFrames < 1){
+				throw new IllegalArgumentException("A sliding window needs at least 1 frame");
+			}
+			frameKeys   = new int[windowFrames][];
+			frameCounts = new long[windowFrames][];
+		} else if (mode.equals(EXPONENTIAL_DECAY)){
+			if (decayPerFrame <= 0 || decayPerFrame >= 1){
+				throw new IllegalArgumentException("Decay must be between 0 and 1");
+			}
+			decay = decayPerFrame;
+			scale = UNIT;
+		} else {
+			throw new IllegalArgumentException("Only supports 'Sliding Window' or 'Exponential Decay'.");
+		}
+		bpp   = bitsPerPixel;
+		table = new ColorHash(FRAME_TABLE_SIZE, bitsPerPixel, ColorHash.LINEAR_PROBING, 0.5,
+				ColorHash.POWER_OF_TWO_SIZING);
+		fv    = new FeatureVector(bitsPerPixel);
+	}
+
+	/**
+	 * Adds a frame given as packed color bits, for example the columns of an image from
+	 * ImageLoader.getColorBitsColumn laid end to end.
+	 * @param pixels The packed bits of the frame's pixels.
+	 * @param offset The index of the first pixel.
+	 * @param length The number of pixels.
+	 * @throws Exception If the frame histogram cannot be created
+	 */
+	public void addFrame(int[] pixels, int offset, int length) throws Exception {
+		// Counted key by key, so the table grows with the frame's colors, not with incrementAll's worst case
+		ColorHash frame = new ColorHash(FRAME_TABLE_SIZE, bpp, ColorHash.LINEAR_PROBING, 0.5,
+				ColorHash.POWER_OF_TWO_SIZING);
+		for (int i = offset; i < offset + length; i++){
+			frame.incrementBits(pixels[i], null);
+		}
+
+		if (frameKeys != null){
+			int[] expiredKeys = frameKeys[nextFrame];
+			if (expiredKeys != null){
+				long[] expiredCounts = frameCounts[nextFrame];
+				for (int i = 0; i < expiredKeys.length; i++){
+					add(expiredKeys[i], -expiredCounts[i]);
+				}
+			}
+			int[] keys = new int[frame.getSize()];
+			long[] counts = new long[keys.length];
+			int[] n = {0};
+			frame.forEach((bits, count) -> {
+				keys[n[0]] = bits;
+				counts[n[0]++] = count;
+				add(bits, count);
+			});
+			frameKeys[nextFrame] = keys;
+			frameCounts[nextFrame] = counts;
+			nextFrame = (nextFrame + 1) % frameKeys.length;
+		} else {
+			scale /= decay;
+			if (scale > MAX_SCALE){
+				renormalize();
+			}
+			long weight = Math.round(scale);
+			frame.forEach((bits, count) -> add(bits, count * weight));
+		}
+		nFrames++;
+	}
+
+	/**
+	 * Adds a frame read from an image.
+	 * @param il The frame.
+	 * @throws Exception If the frame histogram cannot be created
+	 */
+	public void addFrame(ImageLoader il) throws Exception {
+		int height = il.getHeight();
+		int[] pixels = new int[il.getWidth() * height];
+		int[] column = new int[height];
+		for (int x = 0; x < il.getWidth(); x++){
+			System.arraycopy(il.getColorBitsColumn(x, bpp, column), 0, pixels, x * height, height);
+		}
+		addFrame(pixels, 0, pixels.length);
+	}
+
+	/**
+	 * Adds to the count of a color in the table and the FeatureVector.
+	 * @param bits The packed bits of the color.
+	 * @param amount The amount to add, negative to subtract.
+	 */
+	private void add(int bits, long amount){
+		fv.colorCounts[bits] = table.addBits(bits, amount);
+	}
+
+	/**
+	 * Divides every scaled count by the scale, so that one new pixel is worth UNIT again. Colors whose count
+	 * rounds to nothing are dropped.
+	 */
+	private void renormalize(){
+		int[] keys = new int[table.getSize()];
+		long[] counts = new long[keys.length];
+		int[] n = {0};
+		table.forEach((bits, count) -> {
+			keys[n[0]] = bits;
+			counts[n[0]++] = count;
+		});
+		double factor = UNIT / scale;
+		for (int i = 0; i < n[0]; i++){
+			long scaled = Math.round(counts[i] * factor);
+			add(keys[i], scaled - counts[i]);
+		}
+		scale = UNIT;
+	}
+
+	/**
+	 * Gets the count of a color over the window. For a decayed counter this is the scaled count; see
+	 * getDecayedCount.
+	 * @param key The color to look for.
+	 * @return Returns the count, 0 if the color is not in the window.
+	 */
+	public long getCount(ColorKey key){
+		return table.getCount(key);
+	}
+
+	/**
+	 * Gets the decayed count of a color: the sum of its count in each frame times decay to the power of the
+	 * number of frames since. For a sliding window it is the plain count.
+	 * @param key The color to look for.
+	 * @return Returns the decayed count, accurate to about 1 / 256 of a pixel.
+	 */
+	public double getDecayedCount(ColorKey key){
+		return frameKeys != null ? table.getCount(key) : table.getCount(key) * (1.0 / scale);
+	}
+
+	/**
+	 * Gets the FeatureVector of the window, which is updated in place as frames are added.
+	 * @return Returns the live FeatureVector.
+	 */
+	public FeatureVector getFeatureVector(){ return fv; }
+
+	/**
+	 * Gets the table of the window's counts, which is updated in place as frames are added.
+	 * @return Returns the live table. It must not be changed.
+	 */
+	public ColorHash getTable(){ return table; }
+
+	/**
+	 * Gets the number of frames added so far.
+	 * @return Returns the frame count.
+	 */
+	public long getFrameCount(){ return nFrames; }
+
+	/**
+	 * Gets the bits per pixel value for this counter
+	 * @return Bits per pixel of the counter
+	 */
+	public int getBPP(){ return bpp; }
+}